@@ -34,6 +34,7 @@ public class ConnectivityChangeReceiver extends BroadcastReceiver {
     }
 
     private void clearStates() throws Exception {
+        SocksVpnService.clearStates();
         HttpUtils.post("http://127.0.0.1:" + ConfigUtils.getHttpManagerPort() + "/clear-states");
     }
 }
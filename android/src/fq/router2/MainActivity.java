@@ -32,6 +32,8 @@ import fq.router2.utils.*;
 
 import java.io.File;
 import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.List;
 
 
 public class MainActivity extends Activity implements
@@ -387,9 +389,38 @@ public class MainActivity extends Activity implements
         findViewById(R.id.hintTextView).setVisibility(View.VISIBLE);
         findViewById(R.id.fullPowerButton).setVisibility(View.VISIBLE);
         loadWebView();
+        preResolve();
         checkUpdate();
     }
 
+    // warms the dns cache for the update check and the share dialog, both lookups going at once
+    private void preResolve() {
+        final String shareUrlDomain = _(R.string.share_url_domain);
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    DnsUtils.resolveBatchTXT(Arrays.asList(shareUrlDomain, CheckUpdateService.VERSION_DOMAIN), 2,
+                            new DnsUtils.BatchCallback() {
+                                @Override
+                                public void onResolved(String domain, List<String> answers) {
+                                    if (shareUrlDomain.equals(domain) && !answers.isEmpty()) {
+                                        shareUrl = answers.get(0);
+                                    }
+                                }
+
+                                @Override
+                                public void onFailed(String domain, Exception e) {
+                                    // already logged, the later lookups go to the network again
+                                }
+                            });
+                } catch (Exception e) {
+                    LogUtils.e("failed to pre-resolve", e);
+                }
+            }
+        }).start();
+    }
+
     private void checkUpdate() {
         SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(this);
         boolean AutoUpdateEnabled = preferences.getBoolean("AutoUpdateEnabled", true);
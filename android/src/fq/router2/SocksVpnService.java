@@ -2,27 +2,72 @@ package fq.router2;
 
 import android.app.PendingIntent;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.net.LocalServerSocket;
 import android.net.LocalSocket;
 import android.net.VpnService;
 import android.os.ParcelFileDescriptor;
+import android.preference.PreferenceManager;
+import fq.router2.dns.DnsCache;
 import fq.router2.feedback.HandleFatalErrorIntent;
 import fq.router2.life_cycle.ExitService;
+import fq.router2.utils.DnsUtils;
+import fq.router2.utils.IOUtils;
 import fq.router2.utils.LogUtils;
+import fq.router2.vpn.BinaryFdReply;
+import fq.router2.vpn.ConnectEngine;
+import fq.router2.vpn.DnsInterceptor;
+import fq.router2.vpn.FdReply;
+import fq.router2.vpn.FdSockExecutor;
+import fq.router2.vpn.FdTracker;
+import fq.router2.vpn.FlowAccounting;
+import fq.router2.vpn.IpPacketUtils;
+import fq.router2.vpn.MultiplexedFdReply;
+import fq.router2.vpn.NegativeConnectCache;
+import fq.router2.vpn.OneShotFdReply;
+import fq.router2.vpn.PacketBufferPool;
+import fq.router2.vpn.PacketCapture;
+import fq.router2.vpn.PooledSocket;
+import fq.router2.vpn.ProtectedSocketPool;
+import fq.router2.vpn.RouteSetCompiler;
+import fq.router2.vpn.TcpStack;
+import fq.router2.vpn.TunPacketEngine;
+import fq.router2.vpn.UdpRelay;
 
 import java.io.*;
 import java.net.*;
-import java.util.Collections;
-import java.util.HashSet;
-import java.util.Set;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 public class SocksVpnService extends VpnService {
 
+    private final static String DNS_SERVER = "8.8.8.8";
+    private final static int SOCKET_POOL_LOW_WATERMARK = 4;
+    private final static int SOCKET_POOL_HIGH_WATERMARK = 16;
+    private final static int FD_SOCK_QUEUE_CAPACITY = 256;
+    private final static int NEGATIVE_CONNECT_CACHE_SIZE = 4096;
+    private final static int NEGATIVE_CONNECT_CACHE_MILLIS = 5000;
+    private final static int TUN_BUFFER_POOL_SIZE = 512;
+    private final static int FLOW_ACCOUNTING_CAPACITY = 8192;
+    private final static int FLOW_ACCOUNTING_TOP_N = 10;
+    private final static int UDP_RELAY_MAX_SESSIONS = 32768;
+    private final static int UDP_RELAY_IDLE_MILLIS = 60000;
+    private final static int DNS_CACHE_MAX_BYTES = 1024 * 1024;
+
     private static ParcelFileDescriptor tunPFD;
-    private Set<String> skippedFds = new HashSet<String>();
-    private Set<Integer> stagingFds = new HashSet<Integer>();
+    private static ProtectedSocketPool socketPool;
+    private static ConnectEngine connectEngine;
+    private static TunPacketEngine tunPacketEngine;
+    private static TcpStack tcpStack;
+    private static UdpRelay udpRelay;
+    private static FlowAccounting flowAccounting;
+    private static DnsCache dnsCache;
+    private static DnsInterceptor dnsInterceptor;
+    private static final PacketCapture packetCapture = new PacketCapture(
+            new File(IOUtils.VAR_DIR, "capture.ring"), new File(IOUtils.VAR_DIR, "capture.pcap"));
+    private static FdTracker fdTracker;
+    private static FdSockExecutor fdSockExecutor;
 
     @Override
     public void onStart(Intent intent, int startId) {
@@ -54,53 +99,16 @@ public class SocksVpnService extends VpnService {
             }
             Intent statusActivityIntent = new Intent(this, MainActivity.class);
             PendingIntent pIntent = PendingIntent.getActivity(this, 0, statusActivityIntent, 0);
-            tunPFD = new Builder()
+            Builder builder = new Builder()
                     .setConfigureIntent(pIntent)
                     .setSession("fqrouter2")
                     .addAddress("10.25.1.1", 24)
-                    .addRoute("1.0.0.0", 8)
-                    .addRoute("2.0.0.0", 7)
-                    .addRoute("4.0.0.0", 6)
-                    .addRoute("8.0.0.0", 7)
-                    // 10.0.0.0 - 10.255.255.255
-                    .addRoute("11.0.0.0", 8)
-                    .addRoute("12.0.0.0", 6)
-                    .addRoute("16.0.0.0", 4)
-                    .addRoute("32.0.0.0", 3)
-                    .addRoute("64.0.0.0", 2)
-                    .addRoute("139.0.0.0", 8)
-                    .addRoute("140.0.0.0", 6)
-                    .addRoute("144.0.0.0", 4)
-                    .addRoute("160.0.0.0", 5)
-                    .addRoute("168.0.0.0", 6)
-                    .addRoute("172.0.0.0", 12)
-                    // 172.16.0.0 - 172.31.255.255
-                    .addRoute("172.32.0.0", 11)
-                    .addRoute("172.64.0.0", 10)
-                    .addRoute("172.128.0.0", 9)
-                    .addRoute("173.0.0.0", 8)
-                    .addRoute("174.0.0.0", 7)
-                    .addRoute("176.0.0.0", 4)
-                    .addRoute("192.0.0.0", 9)
-                    .addRoute("192.128.0.0", 11)
-                    .addRoute("192.160.0.0", 13)
-                    // 192.168.0.0 - 192.168.255.255
-                    .addRoute("192.169.0.0", 16)
-                    .addRoute("192.170.0.0", 15)
-                    .addRoute("192.172.0.0", 14)
-                    .addRoute("192.176.0.0", 12)
-                    .addRoute("192.192.0.0", 10)
-                    .addRoute("193.0.0.0", 8)
-                    .addRoute("194.0.0.0", 7)
-                    .addRoute("196.0.0.0", 6)
-                    .addRoute("200.0.0.0", 5)
-                    .addRoute("208.0.0.0", 4)
-                    .addRoute("224.0.0.0", 4)
-                    .addRoute("240.0.0.0",5)
-                    .addRoute("248.0.0.0",6)
-                    .addRoute("252.0.0.0",7)
-                    .addRoute("254.0.0.0",8)
-                    .addDnsServer("8.8.8.8")
+                    .setMtu(TunPacketEngine.MTU);
+            for (RouteSetCompiler.Route route : compileRoutes()) {
+                builder.addRoute(route.getAddress(), route.prefixLength);
+            }
+            tunPFD = builder
+                    .addDnsServer(DNS_SERVER)
                     .establish();
             if (tunPFD == null) {
                 stopSelf();
@@ -108,6 +116,40 @@ public class SocksVpnService extends VpnService {
             }
             final int tunFD = tunPFD.getFd();
             LogUtils.i("tunFD is " + tunFD);
+            startSocketPool();
+            SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(this);
+            fdSockExecutor = new FdSockExecutor(
+                    16, FD_SOCK_QUEUE_CAPACITY,
+                    preferences.getString("FdSockRejectPolicy", FdSockExecutor.REJECT_POLICY_FAIL_FAST));
+            connectEngine = new ConnectEngine(socketPool, fdSockExecutor, new NegativeConnectCache(
+                    NEGATIVE_CONNECT_CACHE_SIZE, NEGATIVE_CONNECT_CACHE_MILLIS));
+            connectEngine.start();
+            if (preferences.getBoolean("JavaPacketEngineEnabled", false)) {
+                PacketBufferPool bufferPool = new PacketBufferPool(TUN_BUFFER_POOL_SIZE, TunPacketEngine.MTU);
+                flowAccounting = new FlowAccounting(FLOW_ACCOUNTING_CAPACITY, 120 * 1000, FLOW_ACCOUNTING_TOP_N);
+                if (preferences.getBoolean("JavaTcpStackEnabled", false)) {
+                    tcpStack = new TcpStack(
+                            tunPFD.getFileDescriptor(), bufferPool, socketPool, flowAccounting, packetCapture,
+                            preferences.getString("JavaTcpStackUpstream", TcpStack.UPSTREAM_GATEWAY));
+                    tcpStack.start();
+                    LogUtils.i("tcp will be terminated by java tcp stack");
+                }
+                if (preferences.getBoolean("JavaUdpRelayEnabled", false)) {
+                    udpRelay = new UdpRelay(
+                            tunPFD.getFileDescriptor(), bufferPool, socketPool, flowAccounting, packetCapture,
+                            UDP_RELAY_MAX_SESSIONS, UDP_RELAY_IDLE_MILLIS);
+                    udpRelay.start();
+                    LogUtils.i("udp will be relayed by java udp relay");
+                }
+                dnsCache = new DnsCache("dns_cache", DNS_CACHE_MAX_BYTES, 0);
+                dnsInterceptor = new DnsInterceptor(IpPacketUtils.parseIp(DNS_SERVER), dnsCache);
+                LogUtils.i("dns will be answered from cache by java packet engine");
+                tunPacketEngine = new TunPacketEngine(
+                        tunPFD.getFileDescriptor(), bufferPool, tcpStack, udpRelay,
+                        flowAccounting, packetCapture, dnsInterceptor);
+                tunPacketEngine.start();
+                LogUtils.i("tun traffic will be redirected by java packet engine");
+            }
             LogUtils.i("Started in VPN mode");
             sendBroadcast(new SocksVpnConnectedIntent());
             new Thread(new Runnable() {
@@ -125,15 +167,59 @@ public class SocksVpnService extends VpnService {
         }
     }
 
+    // lan, reserved and user listed (e.g. domestic) ranges bypass the tun
+    private List<RouteSetCompiler.Route> compileRoutes() {
+        long startedAt = System.currentTimeMillis();
+        List<String> excludedCidrs = new ArrayList<String>(Arrays.asList(RouteSetCompiler.DEFAULT_EXCLUDED_CIDRS));
+        File bypassRoutesFile = new File(IOUtils.ETC_DIR, "bypass-routes.txt");
+        if (bypassRoutesFile.exists()) {
+            try {
+                BufferedReader reader = new BufferedReader(new FileReader(bypassRoutesFile));
+                try {
+                    String line;
+                    while (null != (line = reader.readLine())) {
+                        line = line.trim();
+                        if (line.length() > 0 && !line.startsWith("#")) {
+                            excludedCidrs.add(line);
+                        }
+                    }
+                } finally {
+                    reader.close();
+                }
+            } catch (Exception e) {
+                LogUtils.e("failed to read " + bypassRoutesFile, e);
+            }
+        }
+        List<RouteSetCompiler.Route> routes = RouteSetCompiler.compile(excludedCidrs);
+        LogUtils.i("compiled " + routes.size() + " routes from " + excludedCidrs.size() + " excluded cidrs in "
+                + (System.currentTimeMillis() - startedAt) + "ms");
+        return routes;
+    }
+
+    private void startSocketPool() {
+        fdTracker = new FdTracker();
+        socketPool = new ProtectedSocketPool(this, fdTracker, SOCKET_POOL_LOW_WATERMARK, SOCKET_POOL_HIGH_WATERMARK);
+        socketPool.start();
+    }
+
+    public static void clearStates() {
+        ProtectedSocketPool pool = socketPool;
+        if (pool != null) {
+            pool.clear();
+        }
+        ConnectEngine engine = connectEngine;
+        if (engine != null) {
+            engine.clearNegativeConnectCache();
+        }
+    }
+
     private void listenFdServerSocket(final FileDescriptor tunFD) throws Exception {
         final LocalServerSocket fdServerSocket = new LocalServerSocket("fdsock2");
         try {
-            ExecutorService executorService = Executors.newFixedThreadPool(16);
-            int count = 0;
             while (isRunning()) {
                 try {
                     final LocalSocket fdSocket = fdServerSocket.accept();
-                    executorService.submit(new Runnable() {
+                    fdSockExecutor.submit(new Runnable() {
                         @Override
                         public void run() {
                             try {
@@ -142,78 +228,31 @@ public class SocksVpnService extends VpnService {
                                 LogUtils.e("failed to handle fdsock", e);
                             }
                         }
+                    }, new Runnable() {
+                        @Override
+                        public void run() {
+                            rejectFdSocket(fdSocket);
+                        }
                     });
-                    count += 1;
-                    if (count % 200 == 0) {
-                        garbageCollectFds();
-                    }
                 } catch (Exception e) {
                     LogUtils.e("failed to handle fdsock", e);
                 }
             }
-            executorService.shutdown();
         } finally {
             fdServerSocket.close();
         }
     }
 
-    private void garbageCollectFds() {
-        if (listFds() == null) {
-            LogUtils.e("can not gc fd as can not list them");
-        } else {
-            if (skippedFds.isEmpty()) {
-                initSkippedFds();
-            } else {
-                closeStagingFds();
-            }
-        }
-    }
-
-    private String[] listFds() {
-        return new File("/proc/self/fd").list();
-    }
-
-    private void initSkippedFds() {
-        String[] fileNames = listFds();
-        LogUtils.i("init skipped fd count: " + fileNames.length);
-        Collections.addAll(skippedFds, fileNames);
-    }
-
-    private void closeStagingFds() {
-        int count = 0;
-        for (int stagingFd : stagingFds) {
-            try {
-                if (isSocket(stagingFd)) {
-                    ParcelFileDescriptor.adoptFd(stagingFd).close();
-                    count += 1;
-                }
-            } catch (Exception e) {
-                // ignore
-            }
-        }
-        LogUtils.i("closed fd count: " + count);
-        stagingFds.clear();
-        String[] fileNames = listFds();
-        LogUtils.i("current total fd count: " + fileNames.length);
-        for (String fileName : fileNames) {
-            if (skippedFds.contains(fileName)) {
-                continue;
-            }
-            try {
-                if (isSocket(fileName)) {
-                    stagingFds.add(Integer.parseInt(fileName));
-                }
-            } catch (Exception e) {
-                skippedFds.add(fileName);
-                continue;
-            }
+    // the request line is not read yet, so its reply format is unknown: close without writing,
+    // which every fdsock client takes as an empty reply
+    private void rejectFdSocket(LocalSocket fdSocket) {
+        try {
+            fdSocket.close();
+        } catch (Exception e) {
+            LogUtils.e("failed to close fdsock", e);
         }
     }
 
-    private boolean isSocket(Object fileName) throws IOException {
-        return new File("/proc/self/fd/" + fileName).getCanonicalPath().contains("socket:");
-    }
-
     public static boolean isRunning() {
         return tunPFD != null;
     }
@@ -221,9 +260,23 @@ public class SocksVpnService extends VpnService {
     private void passFileDescriptor(LocalSocket fdSocket, FileDescriptor tunFD) throws Exception {
         OutputStream outputStream = fdSocket.getOutputStream();
         InputStream inputStream = fdSocket.getInputStream();
+        boolean handedOver = false;
         try {
+            int firstByte = inputStream.read();
+            if (firstByte < 0) {
+                return;
+            }
+            if (BinaryFdReply.MAGIC == firstByte) {
+                handedOver = true;
+                serveBinary(fdSocket, inputStream, outputStream);
+                return;
+            }
             BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream), 1);
-            String request = reader.readLine();
+            String request = "";
+            if ('\n' != firstByte) {
+                String restOfLine = reader.readLine();
+                request = (char) firstByte + (null == restOfLine ? "" : restOfLine);
+            }
             String[] parts = request.split(",");
             if ("TUN".equals(parts[0])) {
                 fdSocket.setFileDescriptorsForSend(new FileDescriptor[]{tunFD});
@@ -232,82 +285,304 @@ public class SocksVpnService extends VpnService {
                 OutputStreamWriter outputStreamWriter = new OutputStreamWriter(outputStream);
                 outputStreamWriter.write("PONG");
                 outputStreamWriter.close();
-            } else if ("OPEN UDP".equals(parts[0])) {
-                passUdpFileDescriptor(fdSocket, outputStream);
-            } else if ("OPEN TCP".equals(parts[0])) {
-                String dstIp = parts[1];
-                int dstPort = Integer.parseInt(parts[2]);
-                int connectTimeout = Integer.parseInt(parts[3]);
-                passTcpFileDescriptor(fdSocket, outputStream, dstIp, dstPort, connectTimeout);
+            } else if ("ENGINE".equals(parts[0])) {
+                OutputStreamWriter outputStreamWriter = new OutputStreamWriter(outputStream);
+                outputStreamWriter.write(tunPacketEngine == null ? "OFF" : "ON");
+                outputStreamWriter.close();
+            } else if ("NAT".equals(parts[0])) {
+                OutputStreamWriter outputStreamWriter = new OutputStreamWriter(outputStream);
+                outputStreamWriter.write(getOriginalDestination(parts));
+                outputStreamWriter.close();
+            } else if ("CAPTURE".equals(parts[0])) {
+                OutputStreamWriter outputStreamWriter = new OutputStreamWriter(outputStream);
+                outputStreamWriter.write(handleCapture(parts));
+                outputStreamWriter.close();
+            } else if ("STATS".equals(parts[0])) {
+                OutputStreamWriter outputStreamWriter = new OutputStreamWriter(outputStream);
+                outputStreamWriter.write(getStats());
+                outputStreamWriter.close();
+            } else if ("MUX".equals(parts[0])) {
+                handedOver = true;
+                serveMultiplexed(fdSocket, reader, inputStream, outputStream);
             } else {
-                throw new UnsupportedOperationException("fdsock unable to handle: " + request);
+                FdReply reply = new OneShotFdReply(fdSocket, inputStream, outputStream);
+                handedOver = true;
+                try {
+                    if (!passSocketFileDescriptor(parts, reply)) {
+                        throw new UnsupportedOperationException("fdsock unable to handle: " + request);
+                    }
+                } catch (Exception e) {
+                    reply.sendFailure();
+                    throw e;
+                }
             }
         } finally {
-            try {
-                inputStream.close();
-            } catch (Exception e) {
-                LogUtils.e("failed to close input stream", e);
+            if (!handedOver) {
+                OneShotFdReply.close(fdSocket, inputStream, outputStream);
             }
-            try {
-                outputStream.close();
-            } catch (Exception e) {
-                LogUtils.e("failed to close output stream", e);
+        }
+    }
+
+    // NAT,<src port>[,<src ip>], connections from the tun ip itself are made by the tcp stack
+    private static String getOriginalDestination(String[] parts) {
+        TunPacketEngine engine = tunPacketEngine;
+        TcpStack stack = tcpStack;
+        int srcPort = Integer.parseInt(parts[1]);
+        String originalDestination;
+        if (parts.length > 2 && IpPacketUtils.formatIp(TunPacketEngine.TUN_IP).equals(parts[2])) {
+            originalDestination = stack == null ? null : stack.getOriginalDestination(srcPort);
+        } else {
+            originalDestination = engine == null ? null : engine.getOriginalDestination(srcPort);
+        }
+        return originalDestination == null ? "" : originalDestination;
+    }
+
+    // connections from the tun ip itself are made by the tcp stack
+    private static long getOriginalDestination(int srcIp, int srcPort) {
+        TunPacketEngine engine = tunPacketEngine;
+        TcpStack stack = tcpStack;
+        if (TunPacketEngine.TUN_IP == srcIp) {
+            return stack == null ? 0 : stack.getOriginalDestinationAddress(srcPort);
+        }
+        return engine == null ? 0 : engine.getOriginalDestinationAddress(srcPort);
+    }
+
+    private String getStats() {
+        StringBuilder stats = new StringBuilder();
+        FdSockExecutor executor = fdSockExecutor;
+        if (executor != null) {
+            stats.append(executor.getStats());
+        }
+        FdTracker tracker = fdTracker;
+        if (tracker != null) {
+            stats.append(tracker.getStats());
+        }
+        ProtectedSocketPool pool = socketPool;
+        if (pool != null) {
+            stats.append(pool.getStats());
+        }
+        ConnectEngine engine = connectEngine;
+        if (engine != null) {
+            stats.append(engine.getStats());
+        }
+        TunPacketEngine packetEngine = tunPacketEngine;
+        if (packetEngine != null) {
+            stats.append(packetEngine.getStats());
+        }
+        TcpStack stack = tcpStack;
+        if (stack != null) {
+            stats.append(stack.getStats());
+        }
+        UdpRelay relay = udpRelay;
+        if (relay != null) {
+            stats.append(relay.getStats());
+        }
+        FlowAccounting accounting = flowAccounting;
+        if (accounting != null) {
+            stats.append(accounting.getStats());
+        }
+        DnsInterceptor interceptor = dnsInterceptor;
+        if (interceptor != null) {
+            stats.append(interceptor.getStats());
+        }
+        DnsCache cache = dnsCache;
+        if (cache != null) {
+            stats.append(cache.getStats());
+        }
+        stats.append(packetCapture.getStats());
+        stats.append(DnsUtils.getStats());
+        return stats.toString();
+    }
+
+    // CAPTURE,ON[,snapLength,slotCount] / CAPTURE,OFF / CAPTURE,DUMP => path of the pcap file
+    private String handleCapture(String[] parts) throws Exception {
+        if ("ON".equals(parts[1])) {
+            packetCapture.start(
+                    parts.length > 2 ? Integer.parseInt(parts[2]) : 128,
+                    parts.length > 3 ? Integer.parseInt(parts[3]) : 65536);
+            return "OK";
+        } else if ("OFF".equals(parts[1])) {
+            packetCapture.stop();
+            return "OK";
+        } else if ("DUMP".equals(parts[1])) {
+            File dumpFile = packetCapture.dump();
+            return null == dumpFile ? "" : dumpFile.getAbsolutePath();
+        }
+        return "";
+    }
+
+    private boolean passSocketFileDescriptor(String[] parts, FdReply reply) throws Exception {
+        if ("OPEN UDP".equals(parts[0])) {
+            passUdpFileDescriptor(reply);
+        } else if ("OPEN TCP".equals(parts[0])) {
+            // OPEN TCP,dstIp,dstPort,connectTimeout[,staggerMillis,candidateIp:candidatePort...]
+            String dstIp = parts[1];
+            int dstPort = Integer.parseInt(parts[2]);
+            int connectTimeout = Integer.parseInt(parts[3]);
+            if (parts.length > 5) {
+                int staggerMillis = Integer.parseInt(parts[4]);
+                InetSocketAddress[] candidates = new InetSocketAddress[parts.length - 4];
+                candidates[0] = new InetSocketAddress(dstIp, dstPort);
+                for (int i = 5; i < parts.length; i++) {
+                    int colonIndex = parts[i].lastIndexOf(':');
+                    candidates[i - 4] = new InetSocketAddress(
+                            parts[i].substring(0, colonIndex), Integer.parseInt(parts[i].substring(colonIndex + 1)));
+                }
+                connectEngine.connect(candidates, connectTimeout, staggerMillis, reply);
+            } else {
+                connectEngine.connect(new InetSocketAddress(dstIp, dstPort), connectTimeout, reply);
             }
-            fdSocket.close();
+        } else {
+            return false;
         }
+        return true;
     }
 
-    private void passTcpFileDescriptor(
-            LocalSocket fdSocket, OutputStream outputStream,
-            String dstIp, int dstPort, int connectTimeout) throws Exception {
-        Socket sock = new Socket();
-        sock.setTcpNoDelay(true); // force file descriptor being created
-        try {
-            ParcelFileDescriptor fd = ParcelFileDescriptor.fromSocket(sock);
-            if (protect(fd.getFd())) {
+    // one long-lived connection carrying "<id>,OPEN TCP,...", "<id>,OPEN UDP" and "<id>,NAT,..." lines,
+    // replies are written back as soon as each request completes, in any order.
+    // NAT is a table lookup, answered right on the reading thread
+    private void serveMultiplexed(
+            final LocalSocket fdSocket, BufferedReader oneShotReader,
+            final InputStream inputStream, final OutputStream outputStream) {
+        final BufferedReader reader = new BufferedReader(oneShotReader);
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
                 try {
-                    sock.connect(new InetSocketAddress(dstIp, dstPort), connectTimeout);
-                    try {
-                        fdSocket.setFileDescriptorsForSend(new FileDescriptor[]{fd.getFileDescriptor()});
-                        outputStream.write('*');
-                        outputStream.flush();
-                    } finally {
-                        sock.close();
-                        fd.close();
+                    String request;
+                    while (isRunning() && null != (request = reader.readLine())) {
+                        int separatorIndex = request.indexOf(',');
+                        if (separatorIndex <= 0) {
+                            LogUtils.e("fdsock mux request without id: " + request);
+                            break;
+                        }
+                        final String requestId = request.substring(0, separatorIndex);
+                        final String[] parts = request.substring(separatorIndex + 1).split(",");
+                        final MultiplexedFdReply reply = new MultiplexedFdReply(fdSocket, outputStream, requestId);
+                        if ("NAT".equals(parts[0])) {
+                            try {
+                                reply.sendText(getOriginalDestination(parts));
+                            } catch (RuntimeException e) {
+                                LogUtils.e("failed to handle fdsock mux nat request", e);
+                                reply.sendText("");
+                            }
+                            continue;
+                        }
+                        fdSockExecutor.submit(new Runnable() {
+                            @Override
+                            public void run() {
+                                try {
+                                    if (!passSocketFileDescriptor(parts, reply)) {
+                                        LogUtils.e("fdsock mux unable to handle: " + parts[0]);
+                                        reply.sendFailure();
+                                    }
+                                } catch (Exception e) {
+                                    LogUtils.e("failed to handle fdsock mux request", e);
+                                    sendFailureQuietly(reply);
+                                }
+                            }
+                        }, new Runnable() {
+                            @Override
+                            public void run() {
+                                sendFailureQuietly(reply);
+                            }
+                        });
                     }
-                } catch (ConnectException e) {
-                    LogUtils.e("connect " + dstIp + ":" + dstPort + " failed");
-                    outputStream.write('!');
-                } catch (SocketTimeoutException e) {
-                    LogUtils.e("connect " + dstIp + ":" + dstPort + " failed");
-                    outputStream.write('!');
+                } catch (Exception e) {
+                    LogUtils.e("fdsock mux connection failed", e);
                 } finally {
-                    outputStream.flush();
+                    OneShotFdReply.close(fdSocket, inputStream, outputStream);
                 }
-            } else {
-                LogUtils.e("protect tcp socket failed");
             }
-        } finally {
-            sock.close();
-        }
+        }).start();
     }
 
-    private void passUdpFileDescriptor(LocalSocket fdSocket, OutputStream outputStream) throws Exception {
-        DatagramSocket sock = new DatagramSocket();
-        try {
-            ParcelFileDescriptor fd = ParcelFileDescriptor.fromDatagramSocket(sock);
-            if (protect(fd.getFd())) {
+    private void serveBinary(
+            final LocalSocket fdSocket, final InputStream inputStream, final OutputStream outputStream) {
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                // the thread owns the connection, so one request buffer serves all of its requests
+                byte[] request = new byte[BinaryFdReply.REQUEST_LENGTH];
                 try {
-                    fdSocket.setFileDescriptorsForSend(new FileDescriptor[]{fd.getFileDescriptor()});
-                    outputStream.write('*');
-                    outputStream.flush();
+                    while (isRunning() && readFully(inputStream, request)) {
+                        int opcode = request[0] & 0xff;
+                        int requestId = readInt(request, 1);
+                        int ip = readInt(request, 5);
+                        int port = ((request[9] & 0xff) << 8) | (request[10] & 0xff);
+                        if (BinaryFdReply.OPCODE_NAT == opcode) {
+                            BinaryFdReply.sendAddress(
+                                    fdSocket, outputStream, requestId, getOriginalDestination(ip, port));
+                        } else if (BinaryFdReply.OPCODE_OPEN_TCP == opcode) {
+                            // only queued here, the connect engine does the rest
+                            connectEngine.connect(ip, port, readInt(request, 11),
+                                    new BinaryFdReply(fdSocket, outputStream, requestId));
+                        } else if (BinaryFdReply.OPCODE_OPEN_UDP == opcode) {
+                            final FdReply reply = new BinaryFdReply(fdSocket, outputStream, requestId);
+                            fdSockExecutor.submit(new Runnable() {
+                                @Override
+                                public void run() {
+                                    try {
+                                        passUdpFileDescriptor(reply);
+                                    } catch (Exception e) {
+                                        LogUtils.e("failed to handle fdsock binary request", e);
+                                        sendFailureQuietly(reply);
+                                    }
+                                }
+                            }, new Runnable() {
+                                @Override
+                                public void run() {
+                                    sendFailureQuietly(reply);
+                                }
+                            });
+                        } else {
+                            LogUtils.e("fdsock binary unable to handle opcode: " + opcode);
+                            BinaryFdReply.sendBadRequest(fdSocket, outputStream, requestId);
+                        }
+                    }
+                } catch (Exception e) {
+                    LogUtils.e("fdsock binary connection failed", e);
                 } finally {
-                    sock.close();
-                    fd.close();
+                    OneShotFdReply.close(fdSocket, inputStream, outputStream);
                 }
-            } else {
-                LogUtils.e("protect udp socket failed");
             }
+        }).start();
+    }
+
+    private static boolean readFully(InputStream inputStream, byte[] buffer) throws IOException {
+        int offset = 0;
+        while (offset < buffer.length) {
+            int length = inputStream.read(buffer, offset, buffer.length - offset);
+            if (length < 0) {
+                if (0 == offset) {
+                    return false;
+                }
+                throw new EOFException("fdsock binary request truncated");
+            }
+            offset += length;
+        }
+        return true;
+    }
+
+    private static int readInt(byte[] buffer, int offset) {
+        return ((buffer[offset] & 0xff) << 24) | ((buffer[offset + 1] & 0xff) << 16)
+                | ((buffer[offset + 2] & 0xff) << 8) | (buffer[offset + 3] & 0xff);
+    }
+
+    private static void sendFailureQuietly(FdReply reply) {
+        try {
+            reply.sendFailure();
+        } catch (Exception e) {
+            LogUtils.e("failed to reply fdsock request", e);
+        }
+    }
+
+    private void passUdpFileDescriptor(FdReply reply) throws Exception {
+        PooledSocket sock = socketPool.takeUdp();
+        try {
+            long sendStartedAt = System.nanoTime();
+            reply.sendFd(sock.getFileDescriptor());
+            fdSockExecutor.fdSend.recordSince(sendStartedAt);
         } finally {
             sock.close();
         }
@@ -315,6 +590,37 @@ public class SocksVpnService extends VpnService {
 
 
     private void stopVpn() {
+        if (tunPacketEngine != null) {
+            tunPacketEngine.stop();
+            tunPacketEngine = null;
+        }
+        if (tcpStack != null) {
+            tcpStack.stop();
+            tcpStack = null;
+        }
+        if (udpRelay != null) {
+            udpRelay.stop();
+            udpRelay = null;
+        }
+        flowAccounting = null;
+        dnsInterceptor = null;
+        dnsCache = null;
+        if (connectEngine != null) {
+            connectEngine.stop();
+            connectEngine = null;
+        }
+        if (socketPool != null) {
+            socketPool.stop();
+            socketPool = null;
+        }
+        if (fdSockExecutor != null) {
+            fdSockExecutor.shutdown();
+            fdSockExecutor = null;
+        }
+        if (fdTracker != null) {
+            fdTracker.closeAll();
+            fdTracker = null;
+        }
         if (tunPFD != null) {
             try {
                 tunPFD.close();
@@ -0,0 +1,182 @@
+package fq.router2.dns;
+
+import fq.router2.utils.LogUtils;
+import net.sf.ivmaidns.dns.DNSConnection;
+import net.sf.ivmaidns.dns.DNSMsgHeader;
+import net.sf.ivmaidns.dns.DNSRecord;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// the cache in front of upstream lookups. fresh answers come straight from the cache, and an entry
+// hit at least refreshMinHits times is looked up again in the background during its last tenth of ttl,
+// so popular names never wait for the network. when only a stale entry is left the lookup gets
+// staleAnswerWaitMillis to finish, after that the stale answer is returned and the lookup keeps going
+// to refill the cache (rfc 8767). nxdomain and nodata are cached too, so names that do not exist
+// are not asked for again and again. concurrent lookups of one question are coalesced.
+// background lookups run on a few shared threads, one per question at a time, and a question whose
+// lookup failed is not tried again in the background for FAILURE_RECHECK_MILLIS, stale answers go out meanwhile.
+public class CachingResolver {
+
+    private final static long FAILURE_RECHECK_MILLIS = 30 * 1000;
+    private final static int MAX_RECENT_FAILURES = 1024;
+    private final static long JOIN_TIMEOUT_MILLIS = 10 * 1000; // a lookup normally ends well within it
+    private final static ThreadPoolExecutor EXECUTOR = new ThreadPoolExecutor(
+            4, 4, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(64), new ThreadFactory() {
+        private final AtomicInteger threadCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "dns-refresh-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    static {
+        EXECUTOR.allowCoreThreadTimeOut(true);
+    }
+
+    private final DnsCache cache;
+    private final ConcurrentMap<DnsCacheKey, DnsFuture> backgroundLookups =
+            new ConcurrentHashMap<DnsCacheKey, DnsFuture>();
+    private final ConcurrentMap<DnsCacheKey, Long> recentFailures = new ConcurrentHashMap<DnsCacheKey, Long>();
+    private final SingleFlight singleFlight = new SingleFlight(JOIN_TIMEOUT_MILLIS);
+    private final int refreshMinHits;
+    private final long staleAnswerWaitMillis;
+    private final AtomicLong refreshCount = new AtomicLong();
+    private final AtomicLong staleAnswerCount = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+
+    public CachingResolver(DnsCache cache, int refreshMinHits, long staleAnswerWaitMillis) {
+        this.cache = cache;
+        this.refreshMinHits = refreshMinHits;
+        this.staleAnswerWaitMillis = staleAnswerWaitMillis;
+    }
+
+    // lookup returns a whole response, the answer and authority records of it are returned
+    public DNSRecord[] resolve(DnsCacheKey key, SingleFlight.Lookup lookup) throws Exception {
+        long now = System.currentTimeMillis();
+        DnsCache.Entry entry = cache.get(key, now);
+        if (null != entry) {
+            if (!hasFailedRecently(key, now) && entry.shouldRefresh(now, refreshMinHits)) {
+                refreshCount.incrementAndGet();
+                lookupInBackground(key, lookup, entry);
+            }
+            return entry.records;
+        }
+        DnsCache.Entry stale = cache.getStale(key, now);
+        if (null == stale) {
+            return toRecords(lookupAndCache(key, lookup));
+        }
+        if (hasFailedRecently(key, now)) {
+            staleAnswerCount.incrementAndGet();
+            return stale.records;
+        }
+        DnsFuture future = lookupInBackground(key, lookup, null);
+        try {
+            return toRecords(future.get(staleAnswerWaitMillis));
+        } catch (Exception e) {
+            staleAnswerCount.incrementAndGet();
+            LogUtils.i("answer stale " + key + ": " + e);
+            return stale.records;
+        }
+    }
+
+    public String getStats() {
+        return cache.getStats()
+                + singleFlight.getStats()
+                + "dns_resolver.refreshes=" + refreshCount.get() + "\n"
+                + "dns_resolver.stale_answers=" + staleAnswerCount.get() + "\n"
+                + "dns_resolver.recent_failures=" + recentFailures.size() + "\n"
+                + "dns_resolver.background_rejected=" + rejectedCount.get() + "\n";
+    }
+
+    private boolean hasFailedRecently(DnsCacheKey key, long now) {
+        Long failedAt = recentFailures.get(key);
+        if (null == failedAt) {
+            return false;
+        }
+        if (now - failedAt < FAILURE_RECHECK_MILLIS) {
+            return true;
+        }
+        recentFailures.remove(key, failedAt);
+        return false;
+    }
+
+    // joins the background lookup of the question if there is one already.
+    // refreshed is the entry being refreshed ahead of expiry, its refreshing mark is cleared once the lookup is over
+    private DnsFuture lookupInBackground(
+            final DnsCacheKey key, final SingleFlight.Lookup lookup, final DnsCache.Entry refreshed) {
+        final DnsFuture future = new DnsFuture();
+        DnsFuture running = backgroundLookups.putIfAbsent(key, future);
+        if (null != running) {
+            if (null != refreshed) {
+                refreshed.endRefresh();
+            }
+            return running;
+        }
+        try {
+            EXECUTOR.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        byte[] response = lookupAndCache(key, lookup);
+                        recentFailures.remove(key);
+                        future.complete(response);
+                    } catch (Exception e) {
+                        LogUtils.e("failed to refresh " + key, e);
+                        if (recentFailures.size() >= MAX_RECENT_FAILURES) {
+                            recentFailures.clear();
+                        }
+                        recentFailures.put(key, System.currentTimeMillis());
+                        future.fail(e);
+                    } finally {
+                        backgroundLookups.remove(key, future);
+                        if (null != refreshed) {
+                            refreshed.endRefresh();
+                        }
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            rejectedCount.incrementAndGet();
+            backgroundLookups.remove(key, future);
+            if (null != refreshed) {
+                refreshed.endRefresh();
+            }
+            future.fail(e);
+        }
+        return future;
+    }
+
+    private byte[] lookupAndCache(final DnsCacheKey key, final SingleFlight.Lookup lookup) throws Exception {
+        return singleFlight.run(key, new SingleFlight.Lookup() {
+            @Override
+            public byte[] lookup() throws Exception {
+                byte[] response = lookup.lookup();
+                DNSMsgHeader header = new DNSMsgHeader(response);
+                if ((DNSMsgHeader.NOERROR == header.getRCode() && header.getAnCount() > 0)
+                        || DnsMessages.isNegative(header)) {
+                    DNSRecord[] records = DNSConnection.decode(response);
+                    if (null != records) {
+                        cache.put(key, header.getRCode(), DnsMessages.getAnswerAndAuthority(header, records),
+                                header.getAnCount(), System.currentTimeMillis());
+                    }
+                }
+                return response;
+            }
+        });
+    }
+
+    private static DNSRecord[] toRecords(byte[] response) {
+        return DnsMessages.getAnswerAndAuthority(new DNSMsgHeader(response), DNSConnection.decode(response));
+    }
+}
@@ -0,0 +1,208 @@
+package fq.router2.dns;
+
+import net.sf.ivmaidns.dns.DNSRecord;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// answers by question, an entry expires with the smallest ttl among its records.
+// keys are spread over stripes by hash, each stripe is an access ordered map under its own lock
+// and drops its least recently used entries once it holds more than its share of the memory budget.
+// entry sizes are estimated from the wire length of the records plus a fixed per object overhead.
+// expired entries are kept for maxStaleMillis more, for answering stale when upstreams are down (rfc 8767).
+// negative answers are kept as long as the soa in their authority section allows, at most three hours (rfc 2308).
+public class DnsCache {
+
+    private final static int MAX_TTL = 24 * 3600;
+    private final static int MAX_NEGATIVE_TTL = 3 * 3600;
+    private final static int STRIPES = 16;
+    private final static int ENTRY_OVERHEAD = 128; // key, entry, map node and their arrays
+    private final static int RECORD_OVERHEAD = 64; // record, its name and rdata arrays
+
+    public static class Entry {
+
+        public final int rCode;
+        public final DNSRecord[] records;
+        public final int anCount;
+        public final boolean negative;
+        public final long storedAt;
+        public final long expireAt;
+        private final long refreshAt;
+        private final int size;
+        private final AtomicInteger hits = new AtomicInteger();
+        private final AtomicBoolean refreshing = new AtomicBoolean();
+
+        private Entry(int rCode, DNSRecord[] records, int anCount, long storedAt, long expireAt, int size) {
+            this.rCode = rCode;
+            this.records = records;
+            this.anCount = anCount;
+            this.negative = 0 == anCount;
+            this.storedAt = storedAt;
+            this.expireAt = expireAt;
+            this.refreshAt = expireAt - (expireAt - storedAt) / 10;
+            this.size = size;
+        }
+
+        // true for the one caller that should refresh a popular entry in its last tenth of ttl
+        public boolean shouldRefresh(long now, int minHits) {
+            return now >= refreshAt && hits.get() >= minHits && refreshing.compareAndSet(false, true);
+        }
+
+        // the refresh is over without replacing this entry, the next hit may try again
+        public void endRefresh() {
+            refreshing.set(false);
+        }
+
+        // records with ttl counted down by the time spent in the cache
+        public DNSRecord[] getRecords(long now) {
+            int elapsed = (int) ((now - storedAt) / 1000);
+            DNSRecord[] aged = new DNSRecord[records.length];
+            for (int i = 0; i < records.length; i++) {
+                aged[i] = new DNSRecord(records[i], Math.max(0, records[i].getTTL() - elapsed));
+            }
+            return aged;
+        }
+    }
+
+    private final String name;
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private final long maxBytesPerStripe;
+    private final long maxStaleMillis;
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong evictedCount = new AtomicLong();
+    private final AtomicLong expiredCount = new AtomicLong();
+    private final AtomicLong staleHitCount = new AtomicLong();
+    private final AtomicLong negativeHitCount = new AtomicLong();
+
+    public DnsCache(String name, long maxBytes, long maxStaleMillis) {
+        this.name = name;
+        this.maxBytesPerStripe = maxBytes / STRIPES;
+        this.maxStaleMillis = maxStaleMillis;
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    // fresh entries only
+    public Entry get(DnsCacheKey key, long now) {
+        Stripe stripe = stripeOf(key);
+        synchronized (stripe) {
+            Entry entry = stripe.entries.get(key);
+            if (null == entry) {
+                missCount.incrementAndGet();
+                return null;
+            }
+            if (entry.expireAt <= now) {
+                if (entry.expireAt + maxStaleMillis <= now) {
+                    stripe.entries.remove(key);
+                    stripe.bytes -= entry.size;
+                    expiredCount.incrementAndGet();
+                }
+                missCount.incrementAndGet();
+                return null;
+            }
+            hitCount.incrementAndGet();
+            if (entry.negative) {
+                negativeHitCount.incrementAndGet();
+            }
+            entry.hits.incrementAndGet();
+            return entry;
+        }
+    }
+
+    // an expired entry still within the stale window
+    public Entry getStale(DnsCacheKey key, long now) {
+        Stripe stripe = stripeOf(key);
+        synchronized (stripe) {
+            Entry entry = stripe.entries.get(key);
+            if (null == entry || entry.expireAt > now || entry.expireAt + maxStaleMillis <= now) {
+                return null;
+            }
+            staleHitCount.incrementAndGet();
+            return entry;
+        }
+    }
+
+    // records are answer then authority records of a response, the question excluded.
+    // without answers it is a negative entry, cached only if the authority section has a soa
+    public void put(DnsCacheKey key, int rCode, DNSRecord[] records, int anCount, long now) {
+        if (0 == records.length) {
+            return;
+        }
+        int ttl = 0 == anCount ? Math.min(MAX_NEGATIVE_TTL, DnsMessages.getNegativeTtl(records)) : MAX_TTL;
+        int size = ENTRY_OVERHEAD + key.getNameBytesLen();
+        for (DNSRecord record : records) {
+            if (anCount > 0) {
+                ttl = Math.min(ttl, record.getTTL());
+            }
+            size += RECORD_OVERHEAD + record.getTotalLen();
+        }
+        if (ttl <= 0 || size > maxBytesPerStripe) {
+            return;
+        }
+        Entry entry = new Entry(rCode, records, anCount, now, now + ttl * 1000L, size);
+        Stripe stripe = stripeOf(key);
+        synchronized (stripe) {
+            Entry replaced = stripe.entries.put(key, entry);
+            if (null != replaced) {
+                stripe.bytes -= replaced.size;
+            }
+            stripe.bytes += size;
+            Iterator<Entry> iterator = stripe.entries.values().iterator();
+            while (stripe.bytes > maxBytesPerStripe && iterator.hasNext()) {
+                Entry eldest = iterator.next();
+                iterator.remove();
+                stripe.bytes -= eldest.size;
+                if (eldest.expireAt + maxStaleMillis <= now) {
+                    expiredCount.incrementAndGet();
+                } else {
+                    evictedCount.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    public void clear() {
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                stripe.entries.clear();
+                stripe.bytes = 0;
+            }
+        }
+    }
+
+    public String getStats() {
+        int size = 0;
+        long bytes = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.entries.size();
+                bytes += stripe.bytes;
+            }
+        }
+        return name + ".size=" + size + "\n"
+                + name + ".bytes=" + bytes + "\n"
+                + name + ".hits=" + hitCount.get() + "\n"
+                + name + ".misses=" + missCount.get() + "\n"
+                + name + ".evicted=" + evictedCount.get() + "\n"
+                + name + ".expired=" + expiredCount.get() + "\n"
+                + name + ".stale_hits=" + staleHitCount.get() + "\n"
+                + name + ".negative_hits=" + negativeHitCount.get() + "\n";
+    }
+
+    private Stripe stripeOf(DnsCacheKey key) {
+        int h = key.hashCode();
+        return stripes[(h ^ (h >>> 16)) & (STRIPES - 1)];
+    }
+
+    private static class Stripe {
+
+        private final Map<DnsCacheKey, Entry> entries = new LinkedHashMap<DnsCacheKey, Entry>(16, 0.75f, true);
+        private long bytes;
+    }
+}
@@ -0,0 +1,54 @@
+package fq.router2.dns;
+
+import net.sf.ivmaidns.dns.DNSName;
+
+import java.util.Arrays;
+
+// question name in lower-cased wire format plus query type
+public final class DnsCacheKey {
+
+    private final byte[] nameBytes;
+    private final int type;
+    private final int hashCode;
+
+    public DnsCacheKey(DNSName name, int type) {
+        this.nameBytes = name.getBytes();
+        DNSName.canonize(nameBytes, 0);
+        this.type = type;
+        this.hashCode = DNSName.hashCode(nameBytes, 0) * 31 + type;
+    }
+
+    public int getType() {
+        return type;
+    }
+
+    public DNSName getName() {
+        return new DNSName(nameBytes, 0);
+    }
+
+    int getNameBytesLen() {
+        return nameBytes.length;
+    }
+
+    @Override
+    public int hashCode() {
+        return hashCode;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof DnsCacheKey)) {
+            return false;
+        }
+        DnsCacheKey that = (DnsCacheKey) obj;
+        return type == that.type && Arrays.equals(nameBytes, that.nameBytes);
+    }
+
+    @Override
+    public String toString() {
+        return getName() + "/" + type;
+    }
+}
@@ -0,0 +1,64 @@
+package fq.router2.dns;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+// response to a query in flight, completed exactly once by the engine that sent it or cancelled by the caller
+public class DnsFuture {
+
+    private final CountDownLatch done = new CountDownLatch(1);
+    private byte[] response;
+    private Exception failure;
+
+    public boolean isDone() {
+        return 0 == done.getCount();
+    }
+
+    public byte[] get() throws Exception {
+        done.await();
+        return getNow();
+    }
+
+    public byte[] get(long timeoutMillis) throws Exception {
+        if (!done.await(timeoutMillis, TimeUnit.MILLISECONDS)) {
+            throw new TimeoutException("dns response not ready after " + timeoutMillis + "ms");
+        }
+        return getNow();
+    }
+
+    // the engine drops a cancelled query when its response or timeout comes
+    public boolean cancel() {
+        return fail(new CancellationException("dns query cancelled"));
+    }
+
+    boolean complete(byte[] response) {
+        synchronized (this) {
+            if (isDone()) {
+                return false;
+            }
+            this.response = response;
+            done.countDown();
+        }
+        return true;
+    }
+
+    boolean fail(Exception failure) {
+        synchronized (this) {
+            if (isDone()) {
+                return false;
+            }
+            this.failure = failure;
+            done.countDown();
+        }
+        return true;
+    }
+
+    private synchronized byte[] getNow() throws Exception {
+        if (null != failure) {
+            throw failure;
+        }
+        return response;
+    }
+}
@@ -0,0 +1,60 @@
+package fq.router2.dns;
+
+import net.sf.ivmaidns.dns.DNSConnection;
+import net.sf.ivmaidns.dns.DNSMsgHeader;
+import net.sf.ivmaidns.dns.DNSRecord;
+
+// encode and decode whole messages with the ivmaidns codec
+public class DnsMessages {
+
+    // the question of a standard query, or null
+    public static DNSRecord getQuestion(DNSMsgHeader header, DNSRecord[] records) {
+        if (null == records || header.isResponse() || DNSMsgHeader.QUERY != header.getOpCode()
+                || 1 != header.getQdCount() || records.length < 1) {
+            return null;
+        }
+        return records[0];
+    }
+
+    // answer and authority records of a response, the question and additional section dropped
+    public static DNSRecord[] getAnswerAndAuthority(DNSMsgHeader header, DNSRecord[] records) {
+        int first = Math.min(records.length, header.getQdCount());
+        int last = Math.min(records.length, first + header.getAnCount() + header.getNsCount());
+        DNSRecord[] answerAndAuthority = new DNSRecord[last - first];
+        System.arraycopy(records, first, answerAndAuthority, 0, answerAndAuthority.length);
+        return answerAndAuthority;
+    }
+
+    // nxdomain, or nodata: no error but no answer either (rfc 2308)
+    public static boolean isNegative(DNSMsgHeader header) {
+        return DNSMsgHeader.NXDOMAIN == header.getRCode()
+                || (DNSMsgHeader.NOERROR == header.getRCode() && 0 == header.getAnCount());
+    }
+
+    // seconds a negative answer may be cached: the soa ttl capped by the soa minimum field,
+    // -1 if the authority section has no soa, such answers must not be cached
+    public static int getNegativeTtl(DNSRecord[] answerAndAuthority) {
+        for (DNSRecord record : answerAndAuthority) {
+            if (DNSRecord.SOA != record.getRType()) {
+                continue;
+            }
+            Object[] rData = record.getRData();
+            if (rData.length <= DNSRecord.SOA_MINTTL_INDEX || !(rData[DNSRecord.SOA_MINTTL_INDEX] instanceof Number)) {
+                continue;
+            }
+            long minTtl = ((Number) rData[DNSRecord.SOA_MINTTL_INDEX]).longValue();
+            return (int) Math.max(0, Math.min(record.getTTL(), minTtl));
+        }
+        return -1;
+    }
+
+    public static byte[] encodeResponse(
+            DNSMsgHeader queryHeader, DNSRecord question, int rCode, DNSRecord[] records, int anCount) {
+        DNSMsgHeader header = queryHeader.constructResponse(
+                rCode, false, false, true, false, 1, anCount, records.length - anCount, 0);
+        DNSRecord[] message = new DNSRecord[1 + records.length];
+        message[0] = question;
+        System.arraycopy(records, 0, message, 1, records.length);
+        return DNSConnection.encode(header, message);
+    }
+}
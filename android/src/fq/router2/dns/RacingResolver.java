@@ -0,0 +1,115 @@
+package fq.router2.dns;
+
+import fq.router2.utils.LogUtils;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// sends the same question to several servers and takes the first acceptable answer.
+// up to width attempts are in flight, a new one starts every staggerMillis or as soon as one fails,
+// so width 1 is the plain one after another fallback. losers are interrupted once there is a winner.
+public class RacingResolver {
+
+    public static interface Attempt<T> {
+        // throws when the server failed or answered something unacceptable
+        T resolve(InetSocketAddress dnsServer) throws Exception;
+    }
+
+    private final static ThreadPoolExecutor EXECUTOR = new ThreadPoolExecutor(
+            0, 64, 30, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory() {
+        private final AtomicInteger threadCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "dns-race-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }, new ThreadPoolExecutor.CallerRunsPolicy());
+
+    private final int width;
+    private final long staggerMillis;
+
+    public RacingResolver(int width, long staggerMillis) {
+        this.width = Math.max(1, width);
+        this.staggerMillis = Math.max(0, staggerMillis);
+    }
+
+    // on a race thread, or on the caller when all of them are busy
+    public static void execute(Runnable task) {
+        EXECUTOR.execute(task);
+    }
+
+    // the first answer, or the last failure if every server failed
+    public <T> T race(InetSocketAddress[] dnsServers, final Attempt<T> attempt) throws Exception {
+        final LinkedBlockingQueue<Outcome<T>> outcomes = new LinkedBlockingQueue<Outcome<T>>();
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        int started = 0;
+        int finished = 0;
+        long nextStartAt = 0;
+        Exception lastFailure = new Exception("no dns server");
+        try {
+            while (finished < dnsServers.length) {
+                long now = System.currentTimeMillis();
+                int inFlight = started - finished;
+                if (started < dnsServers.length && inFlight < width && (now >= nextStartAt || 0 == inFlight)) {
+                    final InetSocketAddress dnsServer = dnsServers[started++];
+                    nextStartAt = now + staggerMillis;
+                    futures.add(EXECUTOR.submit(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                outcomes.add(new Outcome<T>(dnsServer, attempt.resolve(dnsServer), null));
+                            } catch (Exception e) {
+                                outcomes.add(new Outcome<T>(dnsServer, null, e));
+                            }
+                        }
+                    }));
+                    continue;
+                }
+                Outcome<T> outcome;
+                if (started < dnsServers.length && inFlight < width) {
+                    outcome = outcomes.poll(Math.max(1, nextStartAt - now), TimeUnit.MILLISECONDS);
+                } else {
+                    outcome = outcomes.take();
+                }
+                if (null == outcome) {
+                    continue; // time to stagger in the next server
+                }
+                finished++;
+                if (null == outcome.failure) {
+                    return outcome.answer;
+                }
+                LogUtils.e("failed to resolve at " + outcome.dnsServer, outcome.failure);
+                lastFailure = outcome.failure;
+                nextStartAt = 0; // replace the failed attempt right away
+            }
+            throw lastFailure;
+        } finally {
+            for (Future<?> future : futures) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    private static class Outcome<T> {
+
+        private final InetSocketAddress dnsServer;
+        private final T answer;
+        private final Exception failure;
+
+        private Outcome(InetSocketAddress dnsServer, T answer, Exception failure) {
+            this.dnsServer = dnsServer;
+            this.answer = answer;
+            this.failure = failure;
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package fq.router2.dns;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+// concurrent lookups of the same question share one upstream query: the first caller runs it,
+// the others wait on its future, at most joinTimeoutMillis, and get the same response or the same failure
+public class SingleFlight {
+
+    public static interface Lookup {
+        byte[] lookup() throws Exception;
+    }
+
+    private final ConcurrentMap<DnsCacheKey, DnsFuture> inFlight = new ConcurrentHashMap<DnsCacheKey, DnsFuture>();
+    private final AtomicLong leaderCount = new AtomicLong();
+    private final AtomicLong joinedCount = new AtomicLong();
+    private final AtomicLong joinTimeoutCount = new AtomicLong();
+    private final long joinTimeoutMillis;
+
+    public SingleFlight(long joinTimeoutMillis) {
+        this.joinTimeoutMillis = joinTimeoutMillis;
+    }
+
+    public byte[] run(DnsCacheKey key, Lookup lookup) throws Exception {
+        DnsFuture future = new DnsFuture();
+        DnsFuture leader = inFlight.putIfAbsent(key, future);
+        if (null != leader) {
+            joinedCount.incrementAndGet();
+            try {
+                return leader.get(joinTimeoutMillis);
+            } catch (TimeoutException e) {
+                joinTimeoutCount.incrementAndGet();
+                throw e;
+            }
+        }
+        leaderCount.incrementAndGet();
+        try {
+            byte[] response = lookup.lookup();
+            future.complete(response);
+            return response;
+        } catch (Exception e) {
+            future.fail(e);
+            throw e;
+        } catch (Error e) {
+            // the key is removed below, followers already joined would wait forever otherwise
+            future.fail(new ExecutionException(e));
+            throw e;
+        } finally {
+            inFlight.remove(key, future);
+        }
+    }
+
+    public String getStats() {
+        return "dns_single_flight.in_flight=" + inFlight.size() + "\n"
+                + "dns_single_flight.leaders=" + leaderCount.get() + "\n"
+                + "dns_single_flight.joined=" + joinedCount.get() + "\n"
+                + "dns_single_flight.join_timeouts=" + joinTimeoutCount.get() + "\n";
+    }
+}
@@ -0,0 +1,348 @@
+package fq.router2.dns;
+
+import fq.router2.utils.LogUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// long lived dns over tcp connections per upstream, each one pipelines queries (rfc 7766):
+// callers write length prefixed queries under a send lock and one reader thread per connection
+// matches responses to queries by message id. the reader thread also connects, queries made meanwhile
+// are written once connected, so no caller ever blocks on a connect. a sweeper thread, running while
+// there are connections, times out queries every tick and closes connections idle long enough.
+// a broken connection fails the queries in flight and the next query opens a new one.
+public class TcpDnsPool {
+
+    private final static int TICK_MILLIS = 500;
+    private final static int CONNECT_TIMEOUT_MILLIS = 3000;
+    private final static int MAX_IN_FLIGHT_PER_CONNECTION = 64;
+    private final static int DNS_PORT = 53;
+
+    private final int connectionsPerServer;
+    private final long idleMillis;
+    private final Map<InetAddress, List<Connection>> connections = new ConcurrentHashMap<InetAddress, List<Connection>>();
+    private final AtomicInteger connectionCount = new AtomicInteger();
+    private final AtomicLong openedCount = new AtomicLong();
+    private final AtomicLong queryCount = new AtomicLong();
+    private final AtomicLong responseCount = new AtomicLong();
+    private final AtomicLong timeoutCount = new AtomicLong();
+    private final AtomicLong brokenCount = new AtomicLong();
+    private boolean sweeping;
+
+    public TcpDnsPool(int connectionsPerServer, long idleMillis) {
+        this.connectionsPerServer = Math.max(1, connectionsPerServer);
+        this.idleMillis = idleMillis;
+    }
+
+    // the query id is replaced, it fails at its deadline even if the connection is still being opened
+    public DnsFuture query(InetAddress dnsServer, byte[] query, long timeoutMillis) {
+        DnsFuture future = new DnsFuture();
+        getConnection(dnsServer).send(future, query, timeoutMillis);
+        return future;
+    }
+
+    public void closeAll() {
+        for (List<Connection> serverConnections : connections.values()) {
+            synchronized (serverConnections) {
+                for (Connection connection : new ArrayList<Connection>(serverConnections)) {
+                    connection.shutdown(new SocketException("dns connection pool closed"));
+                }
+            }
+        }
+    }
+
+    public String getStats() {
+        return "tcp_dns_pool.connections=" + connectionCount.get() + "\n"
+                + "tcp_dns_pool.opened=" + openedCount.get() + "\n"
+                + "tcp_dns_pool.queries=" + queryCount.get() + "\n"
+                + "tcp_dns_pool.responses=" + responseCount.get() + "\n"
+                + "tcp_dns_pool.timeouts=" + timeoutCount.get() + "\n"
+                + "tcp_dns_pool.broken=" + brokenCount.get() + "\n";
+    }
+
+    // the least loaded open connection, unless all are busy and there is room for another
+    private Connection getConnection(InetAddress dnsServer) {
+        List<Connection> serverConnections = connections.get(dnsServer);
+        if (null == serverConnections) {
+            synchronized (connections) {
+                serverConnections = connections.get(dnsServer);
+                if (null == serverConnections) {
+                    serverConnections = new ArrayList<Connection>();
+                    connections.put(dnsServer, serverConnections);
+                }
+            }
+        }
+        synchronized (serverConnections) {
+            Connection leastLoaded = null;
+            for (Connection connection : serverConnections) {
+                if (null == leastLoaded || connection.getInFlight() < leastLoaded.getInFlight()) {
+                    leastLoaded = connection;
+                }
+            }
+            if (null != leastLoaded && (leastLoaded.getInFlight() < MAX_IN_FLIGHT_PER_CONNECTION
+                    || serverConnections.size() >= connectionsPerServer)) {
+                return leastLoaded;
+            }
+            Connection connection = new Connection(dnsServer, serverConnections);
+            serverConnections.add(connection);
+            connectionCount.incrementAndGet();
+            connection.startReading();
+            startSweeping();
+            return connection;
+        }
+    }
+
+    private synchronized void startSweeping() {
+        if (sweeping) {
+            return;
+        }
+        sweeping = true;
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (sweep()) {
+                        Thread.sleep(TICK_MILLIS);
+                    }
+                } catch (Exception e) {
+                    LogUtils.e("dns connection sweeper failed", e);
+                    synchronized (TcpDnsPool.this) {
+                        sweeping = false;
+                    }
+                }
+            }
+        }, "tcp-dns-sweeper");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // false once there is no connection left to sweep
+    private boolean sweep() {
+        long now = System.currentTimeMillis();
+        List<Connection> all = new ArrayList<Connection>();
+        for (List<Connection> serverConnections : connections.values()) {
+            synchronized (serverConnections) {
+                all.addAll(serverConnections);
+            }
+        }
+        for (Connection connection : all) {
+            connection.sweep(now);
+        }
+        synchronized (this) {
+            if (0 == connectionCount.get()) {
+                sweeping = false;
+                return false;
+            }
+            return true;
+        }
+    }
+
+    private class Connection {
+
+        private final Socket socket = new Socket();
+        private final InetAddress dnsServer;
+        private final List<Connection> serverConnections;
+        private final Object sendLock = new Object();
+        // guarded by sendLock
+        private OutputStream out;
+        // guarded by this
+        private final Map<Integer, Pending> inFlight = new HashMap<Integer, Pending>();
+        private final List<byte[]> unsent = new ArrayList<byte[]>();
+        private int nextId = (int) (Math.random() * 65536);
+        private long lastActiveAt = System.currentTimeMillis();
+        private boolean connected;
+        private boolean closed;
+
+        private Connection(InetAddress dnsServer, List<Connection> serverConnections) {
+            this.dnsServer = dnsServer;
+            this.serverConnections = serverConnections;
+        }
+
+        private synchronized int getInFlight() {
+            return inFlight.size();
+        }
+
+        private void startReading() {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    read();
+                }
+            }, "tcp-dns-" + dnsServer.getHostAddress());
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        private void send(DnsFuture future, byte[] query, long timeoutMillis) {
+            byte[] message = query.clone();
+            synchronized (this) {
+                if (closed) {
+                    future.fail(new SocketException("dns connection to " + dnsServer + " closed"));
+                    return;
+                }
+                if (inFlight.size() >= 65536) {
+                    future.fail(new IOException("too many queries in flight to " + dnsServer));
+                    return;
+                }
+                while (inFlight.containsKey(nextId)) {
+                    nextId = (nextId + 1) & 0xffff;
+                }
+                message[0] = (byte) (nextId >>> 8);
+                message[1] = (byte) nextId;
+                inFlight.put(nextId, new Pending(future, System.currentTimeMillis() + timeoutMillis));
+                nextId = (nextId + 1) & 0xffff;
+                lastActiveAt = System.currentTimeMillis();
+                queryCount.incrementAndGet();
+                if (!connected) {
+                    unsent.add(message); // written by the reader once connected
+                    return;
+                }
+            }
+            try {
+                synchronized (sendLock) {
+                    write(message);
+                }
+            } catch (Exception e) {
+                shutdown(e);
+            }
+        }
+
+        // under sendLock
+        private void write(byte[] message) throws IOException {
+            byte[] framed = new byte[2 + message.length];
+            framed[0] = (byte) (message.length >>> 8);
+            framed[1] = (byte) message.length;
+            System.arraycopy(message, 0, framed, 2, message.length);
+            out.write(framed);
+            out.flush();
+        }
+
+        private void connect() throws IOException {
+            socket.connect(new InetSocketAddress(dnsServer, DNS_PORT), CONNECT_TIMEOUT_MILLIS);
+            openedCount.incrementAndGet();
+            synchronized (sendLock) {
+                out = new BufferedOutputStream(socket.getOutputStream());
+                List<byte[]> queued;
+                synchronized (this) {
+                    connected = true;
+                    queued = new ArrayList<byte[]>(unsent);
+                    unsent.clear();
+                }
+                for (byte[] message : queued) {
+                    write(message);
+                }
+            }
+        }
+
+        private void read() {
+            try {
+                connect();
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                while (true) {
+                    byte[] response = new byte[in.readUnsignedShort()];
+                    in.readFully(response);
+                    if (response.length < 12) {
+                        continue;
+                    }
+                    int id = ((response[0] & 0xff) << 8) | (response[1] & 0xff);
+                    Pending pending;
+                    synchronized (this) {
+                        pending = inFlight.remove(id);
+                        lastActiveAt = System.currentTimeMillis();
+                    }
+                    if (null != pending) {
+                        responseCount.incrementAndGet();
+                        pending.future.complete(response);
+                    }
+                }
+            } catch (Exception e) {
+                if (!isClosed()) {
+                    brokenCount.incrementAndGet();
+                    LogUtils.e("dns connection to " + dnsServer + " broken", e);
+                }
+                shutdown(e);
+            }
+        }
+
+        private void sweep(long now) {
+            List<Pending> expired = new ArrayList<Pending>();
+            boolean idle;
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                Iterator<Pending> iterator = inFlight.values().iterator();
+                while (iterator.hasNext()) {
+                    Pending pending = iterator.next();
+                    if (pending.future.isDone() || pending.deadline <= now) {
+                        iterator.remove();
+                        expired.add(pending);
+                    }
+                }
+                idle = inFlight.isEmpty() && now - lastActiveAt >= idleMillis;
+            }
+            for (Pending pending : expired) {
+                if (pending.future.fail(new SocketTimeoutException("no dns response from " + dnsServer))) {
+                    timeoutCount.incrementAndGet();
+                }
+            }
+            if (idle) {
+                shutdown(new SocketException("dns connection to " + dnsServer + " idle"));
+            }
+        }
+
+        private synchronized boolean isClosed() {
+            return closed;
+        }
+
+        private void shutdown(Exception reason) {
+            List<Pending> failed;
+            synchronized (this) {
+                closed = true;
+                failed = new ArrayList<Pending>(inFlight.values());
+                inFlight.clear();
+                unsent.clear();
+            }
+            synchronized (serverConnections) {
+                if (serverConnections.remove(this)) {
+                    connectionCount.decrementAndGet();
+                }
+            }
+            try {
+                socket.close(); // wakes up the reader, or aborts its connect
+            } catch (IOException e) {
+                // ignore
+            }
+            for (Pending pending : failed) {
+                pending.future.fail(reason);
+            }
+        }
+    }
+
+    private static class Pending {
+
+        private final DnsFuture future;
+        private final long deadline;
+
+        private Pending(DnsFuture future, long deadline) {
+            this.future = future;
+            this.deadline = deadline;
+        }
+    }
+}
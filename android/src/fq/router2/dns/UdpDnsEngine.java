@@ -0,0 +1,351 @@
+package fq.router2.dns;
+
+import fq.router2.utils.LogUtils;
+import fq.router2.utils.TimerWheel;
+import net.sf.ivmaidns.dns.DNSName;
+
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// all udp dns queries go out over a few unconnected channels on one selector thread.
+// a query in flight is keyed by its random 16 bit id plus the server address and port,
+// a response only completes it if it comes from that server on the same channel with the same question.
+// responses the acceptor turns down are ignored, the query keeps waiting for the real one until it times out.
+public class UdpDnsEngine {
+
+    public static interface Acceptor {
+        boolean accept(byte[] response);
+    }
+
+    public final static Acceptor ACCEPT_ALL = new Acceptor() {
+        @Override
+        public boolean accept(byte[] response) {
+            return true;
+        }
+    };
+
+    private final static int MAX_RESPONSE_SIZE = 4096;
+    private final static int MAX_ID_TRIES = 16;
+
+    private final int channelCount;
+    private final TimerWheel timerWheel = new TimerWheel(50, 512);
+    private final ConcurrentLinkedQueue<Pending> submitted = new ConcurrentLinkedQueue<Pending>();
+    // engine thread only
+    private final Map<Long, Pending> inFlight = new HashMap<Long, Pending>();
+    private final Random random = new SecureRandom();
+    private final ByteBuffer receiveBuffer = ByteBuffer.allocate(MAX_RESPONSE_SIZE);
+    private final AtomicInteger inFlightCount = new AtomicInteger();
+    private final AtomicLong queryCount = new AtomicLong();
+    private final AtomicLong responseCount = new AtomicLong();
+    private final AtomicLong timeoutCount = new AtomicLong();
+    private final AtomicLong unmatchedCount = new AtomicLong();
+    private final AtomicLong refusedCount = new AtomicLong();
+    private DatagramChannel[] channels;
+    private Selector selector;
+    private int nextChannel;
+    private volatile boolean running;
+    // guarded by this, set until the engine thread has cleaned up, a new one never starts before that
+    private Thread thread;
+
+    public UdpDnsEngine(int channelCount) {
+        this.channelCount = Math.max(1, channelCount);
+    }
+
+    public synchronized void start() throws IOException {
+        if (running) {
+            return;
+        }
+        while (null != thread) { // stopped, but still closing the channels and failing queries
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted while waiting for udp dns engine to stop");
+            }
+        }
+        if (running) {
+            return;
+        }
+        selector = Selector.open();
+        channels = new DatagramChannel[channelCount];
+        try {
+            for (int i = 0; i < channelCount; i++) {
+                channels[i] = DatagramChannel.open();
+                channels[i].configureBlocking(false);
+                channels[i].socket().bind(null);
+                channels[i].register(selector, SelectionKey.OP_READ, i);
+            }
+        } catch (IOException e) {
+            closeAll();
+            throw e;
+        }
+        running = true;
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    loop();
+                } catch (Exception e) {
+                    LogUtils.e("udp dns engine failed", e);
+                } finally {
+                    // under the start() monitor, so no new engine takes the fields over before cleanup is done
+                    synchronized (UdpDnsEngine.this) {
+                        running = false;
+                        closeAll();
+                        thread = null;
+                        UdpDnsEngine.this.notifyAll();
+                    }
+                }
+            }
+        }, "udp-dns-engine");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    public void stop() {
+        running = false;
+        Selector selector = this.selector;
+        if (null != selector) {
+            selector.wakeup();
+        }
+    }
+
+    // the query id is replaced, the caller should cancel the future if it gives up waiting
+    public DnsFuture query(InetSocketAddress dnsServer, byte[] query, long timeoutMillis, Acceptor acceptor) {
+        DnsFuture future = new DnsFuture();
+        if (!(dnsServer.getAddress() instanceof Inet4Address) || query.length < 12) {
+            future.fail(new IOException("can not query " + dnsServer + " over udp dns engine"));
+            return future;
+        }
+        if (!running) {
+            future.fail(new IOException("udp dns engine not running"));
+            return future;
+        }
+        Pending pending = new Pending(future, dnsServer, query.clone(), timeoutMillis, acceptor);
+        submitted.add(pending);
+        if (!running && submitted.remove(pending)) {
+            future.fail(new IOException("udp dns engine not running")); // stopped meanwhile, nobody will send it
+            return future;
+        }
+        selector.wakeup();
+        return future;
+    }
+
+    public String getStats() {
+        return "udp_dns_engine.in_flight=" + inFlightCount.get() + "\n"
+                + "udp_dns_engine.queries=" + queryCount.get() + "\n"
+                + "udp_dns_engine.responses=" + responseCount.get() + "\n"
+                + "udp_dns_engine.timeouts=" + timeoutCount.get() + "\n"
+                + "udp_dns_engine.unmatched=" + unmatchedCount.get() + "\n"
+                + "udp_dns_engine.refused=" + refusedCount.get() + "\n";
+    }
+
+    private void loop() throws IOException {
+        while (running) {
+            if (timerWheel.size() > 0) {
+                selector.select(timerWheel.getTickMillis());
+            } else {
+                selector.select();
+            }
+            Pending pending;
+            while (null != (pending = submitted.poll())) {
+                send(pending);
+            }
+            Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+            while (iterator.hasNext()) {
+                SelectionKey key = iterator.next();
+                iterator.remove();
+                receive((Integer) key.attachment());
+            }
+            timerWheel.advance(System.currentTimeMillis());
+        }
+    }
+
+    private void send(Pending pending) {
+        if (pending.future.isDone()) {
+            return; // cancelled before it was sent
+        }
+        long serverKey = toServerKey(pending.dnsServer);
+        for (int i = 0; i < MAX_ID_TRIES; i++) {
+            int id = random.nextInt(65536);
+            if (!inFlight.containsKey(serverKey | ((long) id << 48))) {
+                pending.key = serverKey | ((long) id << 48);
+                break;
+            }
+        }
+        if (0 == pending.key) {
+            pending.future.fail(new IOException("too many queries in flight to " + pending.dnsServer));
+            return;
+        }
+        pending.query[0] = (byte) (pending.key >>> 56);
+        pending.query[1] = (byte) (pending.key >>> 48);
+        pending.channel = nextChannel;
+        nextChannel = (nextChannel + 1) % channelCount;
+        try {
+            channels[pending.channel].send(ByteBuffer.wrap(pending.query), pending.dnsServer);
+        } catch (Exception e) {
+            pending.future.fail(e);
+            return;
+        }
+        queryCount.incrementAndGet();
+        inFlight.put(pending.key, pending);
+        inFlightCount.incrementAndGet();
+        timerWheel.schedule(pending, pending.timeoutMillis);
+    }
+
+    private void receive(int channel) {
+        while (true) {
+            SocketAddress from;
+            receiveBuffer.clear();
+            try {
+                from = channels[channel].receive(receiveBuffer);
+            } catch (Exception e) {
+                LogUtils.e("failed to receive dns response", e);
+                return;
+            }
+            if (null == from) {
+                return;
+            }
+            if (receiveBuffer.position() < 12 || !(from instanceof InetSocketAddress)
+                    || !(((InetSocketAddress) from).getAddress() instanceof Inet4Address)) {
+                unmatchedCount.incrementAndGet();
+                continue;
+            }
+            byte[] response = new byte[receiveBuffer.position()];
+            receiveBuffer.flip();
+            receiveBuffer.get(response);
+            int id = ((response[0] & 0xff) << 8) | (response[1] & 0xff);
+            long key = toServerKey((InetSocketAddress) from) | ((long) id << 48);
+            Pending pending = inFlight.get(key);
+            if (null == pending || channel != pending.channel || !isSameQuestion(pending.query, response)) {
+                unmatchedCount.incrementAndGet();
+                continue;
+            }
+            responseCount.incrementAndGet();
+            if (pending.future.isDone()) {
+                remove(pending); // cancelled, no use waiting any longer
+                continue;
+            }
+            boolean accepted;
+            try {
+                accepted = pending.acceptor.accept(response);
+            } catch (Exception e) {
+                accepted = false;
+            }
+            if (!accepted) {
+                refusedCount.incrementAndGet();
+                continue;
+            }
+            remove(pending);
+            pending.future.complete(response);
+        }
+    }
+
+    private void remove(Pending pending) {
+        pending.cancel();
+        if (null != inFlight.remove(pending.key)) {
+            inFlightCount.decrementAndGet();
+        }
+    }
+
+    private void closeAll() {
+        for (Pending pending : inFlight.values()) {
+            pending.cancel();
+            pending.future.fail(new IOException("udp dns engine stopped"));
+        }
+        inFlight.clear();
+        inFlightCount.set(0);
+        Pending pending;
+        while (null != (pending = submitted.poll())) {
+            pending.future.fail(new IOException("udp dns engine stopped"));
+        }
+        if (null != channels) {
+            for (DatagramChannel channel : channels) {
+                if (null != channel) {
+                    try {
+                        channel.close();
+                    } catch (Exception e) {
+                        // ignore
+                    }
+                }
+            }
+        }
+        try {
+            selector.close();
+        } catch (Exception e) {
+            LogUtils.e("failed to close udp dns engine selector", e);
+        }
+    }
+
+    private static long toServerKey(InetSocketAddress address) {
+        byte[] ip = address.getAddress().getAddress();
+        return ((ip[0] & 0xffL) << 40) | ((ip[1] & 0xffL) << 32) | ((ip[2] & 0xffL) << 24)
+                | ((ip[3] & 0xffL) << 16) | address.getPort();
+    }
+
+    // question count and the first question copied from the query
+    private static boolean isSameQuestion(byte[] query, byte[] response) {
+        if (query[4] != response[4] || query[5] != response[5]) {
+            return false;
+        }
+        int questionEnd = Math.min(query.length, 12 + DNSName.lengthOf(query, 12) + 4);
+        if (response.length < questionEnd) {
+            return false;
+        }
+        for (int i = 12; i < questionEnd; i++) {
+            if (query[i] != response[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private class Pending extends TimerWheel.Timeout {
+
+        private final DnsFuture future;
+        private final InetSocketAddress dnsServer;
+        private final byte[] query;
+        private final long timeoutMillis;
+        private final Acceptor acceptor;
+        private long key;
+        private int channel;
+
+        private Pending(
+                DnsFuture future, InetSocketAddress dnsServer, byte[] query, long timeoutMillis, Acceptor acceptor) {
+            this.future = future;
+            this.dnsServer = dnsServer;
+            this.query = query;
+            this.timeoutMillis = timeoutMillis;
+            this.acceptor = acceptor;
+        }
+
+        @Override
+        protected void expire() {
+            if (null != inFlight.remove(key)) {
+                inFlightCount.decrementAndGet();
+            }
+            if (future.fail(new SocketTimeoutException("no dns response from " + dnsServer))) {
+                timeoutCount.incrementAndGet();
+            }
+        }
+    }
+}
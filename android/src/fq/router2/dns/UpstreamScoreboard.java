@@ -0,0 +1,203 @@
+package fq.router2.dns;
+
+import fq.router2.utils.IOUtils;
+import fq.router2.utils.LogUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+// per upstream ewma of rtt, timeout rate and pollution rate, folded into an expected cost in ms
+// used to order the servers for each query. everything decays towards the neutral prior with a
+// half life, so a server that failed a while ago gets tried again once the network changes.
+// scores are written to a file at most once a minute and read back on first use.
+public class UpstreamScoreboard {
+
+    private final static double RTT_ALPHA = 0.3;
+    private final static double RATE_ALPHA = 0.2;
+    private final static double PRIOR_RTT_MILLIS = 500;
+    private final static double TIMEOUT_PENALTY_MILLIS = 2000;
+    private final static double POLLUTION_PENALTY_MILLIS = 1000;
+    private final static long HALF_LIFE_MILLIS = 10 * 60 * 1000;
+    private final static long SAVE_INTERVAL_MILLIS = 60 * 1000;
+
+    private final File file;
+    private final Map<String, Score> scores = new HashMap<String, Score>();
+    private boolean loaded;
+    private boolean dirty;
+    private long lastSavedAt;
+
+    public UpstreamScoreboard(File file) {
+        this.file = file;
+    }
+
+    // cheapest first, servers with equal cost keep their given order
+    public synchronized InetSocketAddress[] rank(InetSocketAddress[] dnsServers) {
+        load();
+        final long now = System.currentTimeMillis();
+        if (dirty && now - lastSavedAt >= SAVE_INTERVAL_MILLIS) {
+            save(now);
+        }
+        final Map<InetSocketAddress, Double> costs = new HashMap<InetSocketAddress, Double>();
+        for (InetSocketAddress dnsServer : dnsServers) {
+            costs.put(dnsServer, getScore(dnsServer).getCost(now));
+        }
+        InetSocketAddress[] ranked = dnsServers.clone();
+        Arrays.sort(ranked, new Comparator<InetSocketAddress>() {
+            @Override
+            public int compare(InetSocketAddress left, InetSocketAddress right) {
+                return Double.compare(costs.get(left), costs.get(right));
+            }
+        });
+        return ranked;
+    }
+
+    public synchronized void recordAnswered(InetSocketAddress dnsServer, long rttMillis) {
+        load();
+        long now = System.currentTimeMillis();
+        Score score = getScore(dnsServer);
+        score.decay(now);
+        score.rttMillis += RTT_ALPHA * (rttMillis - score.rttMillis);
+        score.timeoutRate -= RATE_ALPHA * score.timeoutRate;
+        changed(now);
+    }
+
+    // no usable answer in time, over udp nor tcp
+    public synchronized void recordTimeout(InetSocketAddress dnsServer) {
+        load();
+        long now = System.currentTimeMillis();
+        Score score = getScore(dnsServer);
+        score.decay(now);
+        score.timeoutRate += RATE_ALPHA * (1 - score.timeoutRate);
+        changed(now);
+    }
+
+    // a wrong answer came in, the query may still get the right one later
+    public synchronized void recordPolluted(InetSocketAddress dnsServer) {
+        load();
+        long now = System.currentTimeMillis();
+        Score score = getScore(dnsServer);
+        score.decay(now);
+        score.pollutionRate += RATE_ALPHA * (1 - score.pollutionRate);
+        changed(now);
+    }
+
+    public synchronized String getStats() {
+        long now = System.currentTimeMillis();
+        StringBuilder stats = new StringBuilder();
+        for (Map.Entry<String, Score> entry : scores.entrySet()) {
+            Score score = entry.getValue();
+            stats.append("dns_upstream.").append(entry.getKey()).append("=")
+                    .append(Math.round(score.getCost(now))).append("ms")
+                    .append(" rtt=").append(Math.round(score.rttMillis))
+                    .append(" timeout_rate=").append(String.format("%.2f", score.timeoutRate))
+                    .append(" pollution_rate=").append(String.format("%.2f", score.pollutionRate))
+                    .append("\n");
+        }
+        return stats.toString();
+    }
+
+    private Score getScore(InetSocketAddress dnsServer) {
+        String key = toKey(dnsServer);
+        Score score = scores.get(key);
+        if (null == score) {
+            score = new Score(System.currentTimeMillis());
+            scores.put(key, score);
+        }
+        return score;
+    }
+
+    private void changed(long now) {
+        dirty = true;
+        if (now - lastSavedAt >= SAVE_INTERVAL_MILLIS) {
+            save(now);
+        }
+    }
+
+    private void load() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        if (!file.exists()) {
+            return;
+        }
+        try {
+            // ip:port rtt timeout_rate pollution_rate updated_at
+            IOUtils.readAll(new FileInputStream(file), new IOUtils.LineRead() {
+                @Override
+                public void onLineRead(String line) {
+                    String[] fields = line.trim().split(" ");
+                    if (5 != fields.length) {
+                        return;
+                    }
+                    Score score = new Score(Long.parseLong(fields[4]));
+                    score.rttMillis = Double.parseDouble(fields[1]);
+                    score.timeoutRate = Double.parseDouble(fields[2]);
+                    score.pollutionRate = Double.parseDouble(fields[3]);
+                    scores.put(fields[0], score);
+                }
+            });
+        } catch (Exception e) {
+            LogUtils.e("failed to load dns upstream scores", e);
+        }
+    }
+
+    private void save(long now) {
+        lastSavedAt = now;
+        dirty = false;
+        StringBuilder content = new StringBuilder();
+        for (Map.Entry<String, Score> entry : scores.entrySet()) {
+            Score score = entry.getValue();
+            content.append(entry.getKey()).append(" ").append(score.rttMillis)
+                    .append(" ").append(score.timeoutRate).append(" ").append(score.pollutionRate)
+                    .append(" ").append(score.updatedAt).append("\n");
+        }
+        try {
+            File tmpFile = new File(file.getPath() + ".tmp");
+            IOUtils.writeToFile(tmpFile, content.toString());
+            if (!tmpFile.renameTo(file)) {
+                LogUtils.e("failed to rename " + tmpFile + " to " + file);
+            }
+        } catch (Exception e) {
+            LogUtils.e("failed to save dns upstream scores", e);
+        }
+    }
+
+    private static String toKey(InetSocketAddress dnsServer) {
+        return (null == dnsServer.getAddress() ? dnsServer.getHostName() : dnsServer.getAddress().getHostAddress())
+                + ":" + dnsServer.getPort();
+    }
+
+    private static class Score {
+
+        private double rttMillis = PRIOR_RTT_MILLIS;
+        private double timeoutRate;
+        private double pollutionRate;
+        private long updatedAt;
+
+        private Score(long updatedAt) {
+            this.updatedAt = updatedAt;
+        }
+
+        private void decay(long now) {
+            if (now <= updatedAt) {
+                return;
+            }
+            double factor = Math.pow(0.5, (double) (now - updatedAt) / HALF_LIFE_MILLIS);
+            rttMillis = PRIOR_RTT_MILLIS + (rttMillis - PRIOR_RTT_MILLIS) * factor;
+            timeoutRate *= factor;
+            pollutionRate *= factor;
+            updatedAt = now;
+        }
+
+        private double getCost(long now) {
+            decay(now);
+            return rttMillis + timeoutRate * TIMEOUT_PENALTY_MILLIS + pollutionRate * POLLUTION_PENALTY_MILLIS;
+        }
+    }
+}
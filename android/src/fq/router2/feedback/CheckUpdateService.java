@@ -9,6 +9,8 @@ import fq.router2.utils.LogUtils;
 
 public class CheckUpdateService extends IntentService {
 
+    public final static String VERSION_DOMAIN = "prod.android.ver.fqrouter.com";
+
     public CheckUpdateService() {
         super("CheckUpdate");
     }
@@ -22,7 +24,7 @@ public class CheckUpdateService extends IntentService {
     public void checkUpdate() {
         try {
             LogUtils.i("checking update...");
-            String versionInfo = DnsUtils.resolveTXT("prod.android.ver.fqrouter.com");
+            String versionInfo = DnsUtils.resolveTXT(VERSION_DOMAIN);
             String latestVersion = versionInfo.split("\\|")[0];
             String upgradeUrl = versionInfo.split("\\|")[1];
             if (isNewer(latestVersion, LaunchService.getMyVersion(this))) {
@@ -1,20 +1,38 @@
 package fq.router2.utils;
 
+import fq.router2.dns.DnsCache;
+import fq.router2.dns.CachingResolver;
+import fq.router2.dns.DnsCacheKey;
+import fq.router2.dns.DnsFuture;
+import fq.router2.dns.DnsMessages;
+import fq.router2.dns.RacingResolver;
+import fq.router2.dns.SingleFlight;
+import fq.router2.dns.TcpDnsPool;
+import fq.router2.dns.UdpDnsEngine;
+import fq.router2.dns.UpstreamScoreboard;
 import net.sf.ivmaidns.dns.DNSConnection;
 import net.sf.ivmaidns.dns.DNSMsgHeader;
 import net.sf.ivmaidns.dns.DNSName;
 import net.sf.ivmaidns.dns.DNSRecord;
 
-import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
+import java.io.File;
 import java.net.Inet4Address;
 import java.net.InetSocketAddress;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashSet;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
 
 public class DnsUtils {
+    public static interface BatchCallback {
+        // on a race thread or the calling one. ip addresses for A, texts for TXT, empty if the name has none
+        void onResolved(String domain, List<String> answers);
+
+        void onFailed(String domain, Exception e);
+    }
+
     private final static InetSocketAddress[] DNS_SERVERS = new InetSocketAddress[]{
             new InetSocketAddress("8.8.8.8", 53),
             new InetSocketAddress("208.67.222.222", 443),
@@ -70,67 +88,192 @@ public class DnsUtils {
         }
     }};
 
+    // stale answers are kept for a day, refreshed ahead once hit 3 times
+    private final static CachingResolver RESOLVER = new CachingResolver(
+            new DnsCache("dns_utils_cache", 256 * 1024, 24 * 3600 * 1000L), 3, 1800);
+    private final static UdpDnsEngine UDP_ENGINE = new UdpDnsEngine(4);
+    private final static TcpDnsPool TCP_POOL = new TcpDnsPool(2, 30 * 1000);
+    private final static UpstreamScoreboard SCOREBOARD = new UpstreamScoreboard(
+            new File(IOUtils.VAR_DIR, "dns-upstreams"));
+    // up to 3 servers at once, the next one 300ms after the last
+    private final static RacingResolver RACING_RESOLVER = new RacingResolver(3, 300);
+
+    public static String getStats() {
+        return RESOLVER.getStats() + UDP_ENGINE.getStats() + TCP_POOL.getStats() + SCOREBOARD.getStats();
+    }
+
     public static List<Inet4Address> resolveA(String domain) throws Exception {
-        for (InetSocketAddress dnsServer : DNS_SERVERS) {
-            try {
-                return resolveA(domain, dnsServer);
-            } catch (Exception e) {
-                LogUtils.e("failed to resolve: " + domain, e);
+        try {
+            return toIps(resolve(new DnsCacheKey(new DNSName(domain, null), DNSRecord.A), domain));
+        } catch (Exception e) {
+            LogUtils.e("failed to resolve: " + domain, e);
+            return new ArrayList<Inet4Address>();
+        }
+    }
+
+    public static void resolveBatchA(Collection<String> domains, int maxInFlight, BatchCallback callback)
+            throws InterruptedException {
+        resolveBatch(domains, DNSRecord.A, maxInFlight, callback);
+    }
+
+    public static void resolveBatchTXT(Collection<String> domains, int maxInFlight, BatchCallback callback)
+            throws InterruptedException {
+        resolveBatch(domains, DNSRecord.TXT, maxInFlight, callback);
+    }
+
+    // up to maxInFlight of the domains are looked up at once on the shared race threads, each result goes
+    // to the callback as soon as it is in. returns once every domain has been reported
+    private static void resolveBatch(
+            Collection<String> domains, final int type, int maxInFlight, final BatchCallback callback)
+            throws InterruptedException {
+        final Semaphore inFlight = new Semaphore(Math.max(1, maxInFlight));
+        final CountDownLatch done = new CountDownLatch(domains.size());
+        for (final String domain : domains) {
+            inFlight.acquire();
+            RacingResolver.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        List<String> answers;
+                        try {
+                            answers = resolveAnswers(domain, type);
+                        } catch (Exception e) {
+                            LogUtils.e("failed to resolve: " + domain, e);
+                            callback.onFailed(domain, e);
+                            return;
+                        }
+                        callback.onResolved(domain, answers);
+                    } finally {
+                        inFlight.release();
+                        done.countDown();
+                    }
+                }
+            });
+        }
+        done.await();
+    }
+
+    private static List<String> resolveAnswers(String domain, int type) throws Exception {
+        DnsCacheKey question = new DnsCacheKey(new DNSName(domain, null), type);
+        List<String> answers = new ArrayList<String>();
+        if (DNSRecord.A == type) {
+            for (Inet4Address ip : toIps(resolve(question, domain))) {
+                answers.add(ip.getHostAddress());
+            }
+        } else {
+            for (DNSRecord record : resolve(question, domain)) {
+                if (DNSRecord.TXT == record.getRType() && record.getRData().length > 0) {
+                    answers.add((String) record.getRData()[0]);
+                }
             }
         }
-        return new ArrayList<Inet4Address>();
+        return answers;
+    }
+
+    // through the cache, A is raced across the servers, TXT asks them one by one
+    private static DNSRecord[] resolve(DnsCacheKey key, final String domain) throws Exception {
+        final boolean isA = DNSRecord.A == key.getType();
+        return RESOLVER.resolve(key, new SingleFlight.Lookup() {
+            @Override
+            public byte[] lookup() throws Exception {
+                return isA ? raceA(domain) : walkTXT(domain);
+            }
+        });
+    }
+
+    private static byte[] raceA(final String domain) throws Exception {
+        InetSocketAddress[] dnsServers = SCOREBOARD.rank(DNS_SERVERS);
+        return RACING_RESOLVER.race(dnsServers, new RacingResolver.Attempt<byte[]>() {
+            @Override
+            public byte[] resolve(InetSocketAddress dnsServer) throws Exception {
+                long startedAt = System.currentTimeMillis();
+                byte[] response;
+                try {
+                    response = queryA(domain, dnsServer);
+                } catch (InterruptedException e) {
+                    throw e;
+                } catch (Exception e) {
+                    SCOREBOARD.recordTimeout(dnsServer);
+                    throw e;
+                }
+                List<Inet4Address> ips = toIps(response);
+                if (isWrong(ips) && !isNegative(response)) {
+                    if (isPolluted(ips)) {
+                        SCOREBOARD.recordPolluted(dnsServer);
+                    }
+                    throw new Exception("wrong answer from " + dnsServer + ": " + ips);
+                }
+                SCOREBOARD.recordAnswered(dnsServer, System.currentTimeMillis() - startedAt);
+                return response;
+            }
+        });
     }
 
     public static List<Inet4Address> resolveA(String domain, InetSocketAddress dnsServer) throws Exception {
+        return toIps(queryA(domain, dnsServer));
+    }
+
+    private static byte[] queryA(String domain, InetSocketAddress dnsServer) throws Exception {
         DNSMsgHeader qHeader = DNSMsgHeader.construct(
                 DNSMsgHeader.QUERY, true, 1, 0, 0, 0, false);
         DNSRecord[] records = new DNSRecord[1];
         records[0] = new DNSRecord(new DNSName(domain, null), DNSRecord.A, DNSRecord.IN);
         byte[] query = DNSConnection.encode(qHeader, records);
         try {
-            return resolveAOverUdp(dnsServer, query);
+            return queryAOverUdp(dnsServer, query);
+        } catch (InterruptedException e) {
+            throw e; // lost the race, no tcp fallback
         } catch (Exception e) {
             LogUtils.e("failed to resolve over udp", e);
-            return resolveAOverTcp(dnsServer, query);
+            return queryOverTcp(dnsServer, query);
         }
     }
 
-    private static List<Inet4Address> resolveAOverTcp(InetSocketAddress dnsServer, byte[] query) throws Exception {
-        DNSConnection dnsConnection = new DNSConnection();
+    // pipelined over a pooled connection to port 53 of the same server
+    private static byte[] queryOverTcp(InetSocketAddress dnsServer, byte[] query) throws Exception {
+        DnsFuture future = TCP_POOL.query(dnsServer.getAddress(), query, 5000);
         try {
-            dnsConnection.open(dnsServer.getAddress());
-            dnsConnection.send(query);
-            return toIps(dnsConnection.receive(true));
+            return future.get(6000);
         } finally {
-            dnsConnection.close();
+            future.cancel();
         }
     }
 
-    private static List<Inet4Address> resolveAOverUdp(InetSocketAddress dnsServer, byte[] query) throws Exception {
-        DatagramSocket datagramSocket = new DatagramSocket();
-        datagramSocket.setSoTimeout(1000);
-        try {
-            datagramSocket.connect(dnsServer.getAddress(), dnsServer.getPort());
-            datagramSocket.send(new DatagramPacket(query, query.length));
-            while (true) {
-                List<Inet4Address> ips = readIps(datagramSocket);
-                if (!isWrong(ips)) {
-                    return ips;
+    private static byte[] queryAOverUdp(final InetSocketAddress dnsServer, byte[] query) throws Exception {
+        return queryOverUdp(dnsServer, query, 1000, new UdpDnsEngine.Acceptor() {
+            @Override
+            public boolean accept(byte[] response) {
+                List<Inet4Address> ips = toIps(response);
+                if (isPolluted(ips)) {
+                    SCOREBOARD.recordPolluted(dnsServer);
                 }
+                return !isWrong(ips) || isNegative(response);
+            }
+        });
+    }
+
+    // all lookups share the few sockets of the udp engine, started on first use
+    private static byte[] queryOverUdp(
+            InetSocketAddress dnsServer, byte[] query, long timeoutMillis, UdpDnsEngine.Acceptor acceptor)
+            throws Exception {
+        synchronized (UDP_ENGINE) {
+            if (!UDP_ENGINE.isRunning()) {
+                UDP_ENGINE.start();
             }
+        }
+        DnsFuture future = UDP_ENGINE.query(dnsServer, query, timeoutMillis, acceptor);
+        try {
+            return future.get(timeoutMillis + 1000);
         } finally {
-            datagramSocket.close();
+            future.cancel();
         }
     }
 
-    private static List<Inet4Address> readIps(DatagramSocket datagramSocket) throws Exception {
-        DatagramPacket packet = new DatagramPacket(new byte[2048], 2048);
-        datagramSocket.receive(packet);
-        return toIps(packet.getData());
+    private static List<Inet4Address> toIps(byte[] buffer) {
+        return toIps(DNSConnection.decode(buffer));
     }
 
-    private static List<Inet4Address> toIps(byte[] buffer) {
-        DNSRecord[] records = DNSConnection.decode(buffer);
+    private static List<Inet4Address> toIps(DNSRecord[] records) {
         List<Inet4Address> ips = new ArrayList<Inet4Address>();
         for (DNSRecord record : records) {
             if (DNSRecord.A == record.getRType()) {
@@ -143,9 +286,18 @@ public class DnsUtils {
     }
 
     private static boolean isWrong(List<Inet4Address> ips) {
-        if (ips.isEmpty()) {
-            return true;
-        }
+        return ips.isEmpty() || isPolluted(ips);
+    }
+
+    // nxdomain or nodata with a soa to cache it by, the name really has no such record
+    private static boolean isNegative(byte[] response) {
+        DNSMsgHeader header = new DNSMsgHeader(response);
+        DNSRecord[] records = DNSConnection.decode(response);
+        return null != records && DnsMessages.isNegative(header)
+                && DnsMessages.getNegativeTtl(DnsMessages.getAnswerAndAuthority(header, records)) >= 0;
+    }
+
+    private static boolean isPolluted(List<Inet4Address> ips) {
         for (Inet4Address ip : ips) {
             if (WRONG_ANSWERS.contains(ip.getHostAddress())) {
                 return true;
@@ -155,17 +307,43 @@ public class DnsUtils {
     }
 
     public static String resolveTXT(String domain) throws Exception {
-        for (InetSocketAddress dnsServer : DNS_SERVERS) {
+        try {
+            return toTXT(resolve(new DnsCacheKey(new DNSName(domain, null), DNSRecord.TXT), domain));
+        } catch (Exception e) {
+            return "";
+        }
+    }
+
+    private static byte[] walkTXT(String domain) throws Exception {
+        for (InetSocketAddress dnsServer : SCOREBOARD.rank(DNS_SERVERS)) {
+            long startedAt = System.currentTimeMillis();
+            byte[] response;
             try {
-                return resolveTXT(domain, dnsServer);
+                response = queryTXT(domain, dnsServer);
             } catch (Exception e) {
+                SCOREBOARD.recordTimeout(dnsServer);
                 LogUtils.e("failed to resolve: " + domain, e);
+                continue;
+            }
+            // it answered, so it stays a good server for A even if the next one has to be asked for the txt
+            SCOREBOARD.recordAnswered(dnsServer, System.currentTimeMillis() - startedAt);
+            try {
+                if (!isNegative(response)) {
+                    toTXT(response);
+                }
+                return response;
+            } catch (Exception e) {
+                LogUtils.e("no txt of " + domain + " from " + dnsServer, e);
             }
         }
-        return "";
+        throw new Exception("no dns server resolved txt of " + domain);
     }
 
     public static String resolveTXT(String domain, InetSocketAddress dnsServer) throws Exception {
+        return toTXT(queryTXT(domain, dnsServer));
+    }
+
+    private static byte[] queryTXT(String domain, InetSocketAddress dnsServer) throws Exception {
         DNSMsgHeader qHeader = DNSMsgHeader.construct(
                 DNSMsgHeader.QUERY, true, 1, 0, 0, 0, false);
         DNSRecord[] records = new DNSRecord[1];
@@ -173,40 +351,22 @@ public class DnsUtils {
         byte[] request = DNSConnection.encode(qHeader, records);
 
         try {
-            return resolveTXTOverUdp(dnsServer, request);
+            return queryTXTOverUdp(dnsServer, request);
         } catch (Exception e) {
             LogUtils.e("failed to resolve txt over udp at " + dnsServer, e);
-            return resolveTXTOverTcp(dnsServer, request);
+            return queryOverTcp(dnsServer, request);
         }
     }
 
-    private static String resolveTXTOverUdp(InetSocketAddress dnsServer, byte[] query) throws Exception {
-        DatagramSocket datagramSocket = new DatagramSocket();
-        datagramSocket.setSoTimeout(2000);
-        try {
-            datagramSocket.connect(dnsServer.getAddress(), dnsServer.getPort());
-            datagramSocket.send(new DatagramPacket(query, query.length));
-            DatagramPacket packet = new DatagramPacket(new byte[2048], 2048);
-            datagramSocket.receive(packet);
-            return toTXT(packet.getData());
-        } finally {
-            datagramSocket.close();
-        }
+    private static byte[] queryTXTOverUdp(InetSocketAddress dnsServer, byte[] query) throws Exception {
+        return queryOverUdp(dnsServer, query, 2000, UdpDnsEngine.ACCEPT_ALL);
     }
 
-    private static String resolveTXTOverTcp(InetSocketAddress dnsServer, byte[] request) throws IOException {
-        DNSConnection connection = new DNSConnection();
-        try {
-            connection.open(dnsServer.getAddress());
-            connection.send(request);
-            return toTXT(connection.receive(true));
-        } finally {
-            connection.close();
-        }
+    private static String toTXT(byte[] buffer) {
+        return toTXT(DNSConnection.decode(buffer));
     }
 
-    private static String toTXT(byte[] buffer) {
-        DNSRecord[] records = DNSConnection.decode(buffer);
+    private static String toTXT(DNSRecord[] records) {
         for (DNSRecord record : records) {
             if (DNSRecord.TXT == record.getRType() && record.getRData().length > 0) {
                 return (String) record.getRData()[0];
@@ -0,0 +1,58 @@
+package fq.router2.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// lock free log2 buckets of microseconds, percentiles are reported as bucket upper bounds
+public class LatencyHistogram {
+
+    private final static int BUCKET_COUNT = 32;
+
+    private final String name;
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalMicros = new AtomicLong();
+
+    public LatencyHistogram(String name) {
+        this.name = name;
+    }
+
+    public void recordSince(long startedAtNanos) {
+        record((System.nanoTime() - startedAtNanos) / 1000);
+    }
+
+    public void record(long micros) {
+        if (micros < 0) {
+            micros = 0;
+        }
+        int bucket = 64 - Long.numberOfLeadingZeros(micros);
+        buckets.incrementAndGet(Math.min(bucket, BUCKET_COUNT - 1));
+        count.incrementAndGet();
+        totalMicros.addAndGet(micros);
+    }
+
+    public long getPercentileMicros(double percentile) {
+        long total = count.get();
+        if (0 == total) {
+            return 0;
+        }
+        long threshold = (long) Math.ceil(total * percentile);
+        long cumulative = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            cumulative += buckets.get(i);
+            if (cumulative >= threshold) {
+                return (1L << i) - 1;
+            }
+        }
+        return (1L << (BUCKET_COUNT - 1)) - 1;
+    }
+
+    public String getStats() {
+        long total = count.get();
+        return name + ".count=" + total + "\n"
+                + name + ".avg_us=" + (0 == total ? 0 : totalMicros.get() / total) + "\n"
+                + name + ".p50_us=" + getPercentileMicros(0.5) + "\n"
+                + name + ".p90_us=" + getPercentileMicros(0.9) + "\n"
+                + name + ".p99_us=" + getPercentileMicros(0.99) + "\n";
+    }
+}
@@ -0,0 +1,122 @@
+package fq.router2.utils;
+
+// hashed timer wheel, not thread safe: schedule, cancel and advance from the owning thread only
+public class TimerWheel {
+
+    public static abstract class Timeout {
+        private TimerWheel wheel;
+        private long deadlineTick;
+        private Timeout prev;
+        private Timeout next;
+        private Timeout nextExpired;
+        private boolean expiring;
+
+        protected abstract void expire();
+
+        public final boolean isScheduled() {
+            return null != wheel;
+        }
+
+        public final void cancel() {
+            expiring = false;
+            if (null != wheel) {
+                wheel.remove(this);
+            }
+        }
+    }
+
+    private final long tickMillis;
+    private final Timeout[] buckets;
+    private final int mask;
+    private long lastTick;
+    private int size;
+
+    public TimerWheel(long tickMillis, int bucketCount) {
+        int powerOfTwo = 1;
+        while (powerOfTwo < bucketCount) {
+            powerOfTwo <<= 1;
+        }
+        this.tickMillis = tickMillis;
+        this.buckets = new Timeout[powerOfTwo];
+        this.mask = powerOfTwo - 1;
+        this.lastTick = System.currentTimeMillis() / tickMillis;
+    }
+
+    public long getTickMillis() {
+        return tickMillis;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void schedule(Timeout timeout, long delayMillis) {
+        timeout.cancel();
+        long deadlineTick = (System.currentTimeMillis() + delayMillis + tickMillis - 1) / tickMillis;
+        if (deadlineTick <= lastTick) {
+            deadlineTick = lastTick + 1;
+        }
+        int bucket = (int) (deadlineTick & mask);
+        timeout.wheel = this;
+        timeout.deadlineTick = deadlineTick;
+        timeout.prev = null;
+        timeout.next = buckets[bucket];
+        if (null != timeout.next) {
+            timeout.next.prev = timeout;
+        }
+        buckets[bucket] = timeout;
+        size++;
+    }
+
+    public void advance(long now) {
+        long nowTick = now / tickMillis;
+        if (nowTick <= lastTick) {
+            return;
+        }
+        long ticks = Math.min(nowTick - lastTick, buckets.length);
+        Timeout expired = null;
+        for (long tick = lastTick + 1; tick <= lastTick + ticks; tick++) {
+            Timeout timeout = buckets[(int) (tick & mask)];
+            while (null != timeout) {
+                Timeout next = timeout.next;
+                if (timeout.deadlineTick <= nowTick) {
+                    remove(timeout);
+                    timeout.expiring = true;
+                    timeout.nextExpired = expired;
+                    expired = timeout;
+                }
+                timeout = next;
+            }
+        }
+        lastTick = nowTick;
+        while (null != expired) {
+            Timeout timeout = expired;
+            expired = timeout.nextExpired;
+            timeout.nextExpired = null;
+            if (!timeout.expiring) {
+                continue; // cancelled by an earlier expiry in the same tick
+            }
+            timeout.expiring = false;
+            try {
+                timeout.expire();
+            } catch (Exception e) {
+                LogUtils.e("timeout failed", e);
+            }
+        }
+    }
+
+    private void remove(Timeout timeout) {
+        if (null != timeout.prev) {
+            timeout.prev.next = timeout.next;
+        } else {
+            buckets[(int) (timeout.deadlineTick & mask)] = timeout.next;
+        }
+        if (null != timeout.next) {
+            timeout.next.prev = timeout.prev;
+        }
+        timeout.prev = null;
+        timeout.next = null;
+        timeout.wheel = null;
+        size--;
+    }
+}
@@ -0,0 +1,113 @@
+package fq.router2.vpn;
+
+import android.net.LocalSocket;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.OutputStream;
+
+// binary framing, negotiated by MAGIC as the first byte of a long-lived connection
+// request:  opcode(1) request id(4) ipv4(4) port(2) timeout millis(4), all big endian
+//   OPEN_TCP  connect to ipv4:port within timeout
+//   OPEN_UDP  address fields ignored
+//   NAT       original destination of the connection from ipv4:port
+// response: status(1, carries the fd when STATUS_FD) request id(4),
+//   followed by ipv4(4) port(2) when STATUS_ADDRESS
+public class BinaryFdReply extends FdReply {
+
+    public final static int MAGIC = 0xFB;
+    public final static int REQUEST_LENGTH = 15;
+    public final static int OPCODE_OPEN_TCP = 1;
+    public final static int OPCODE_OPEN_UDP = 2;
+    public final static int OPCODE_NAT = 3;
+    public final static int STATUS_FD = 0;
+    public final static int STATUS_FAILED = 1;
+    public final static int STATUS_BAD_REQUEST = 2;
+    public final static int STATUS_ADDRESS = 3;
+
+    private final static ThreadLocal<byte[]> RESPONSE_BUFFER = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[11];
+        }
+    };
+    private final static ThreadLocal<FileDescriptor[]> FDS_FOR_SEND = new ThreadLocal<FileDescriptor[]>() {
+        @Override
+        protected FileDescriptor[] initialValue() {
+            return new FileDescriptor[1];
+        }
+    };
+
+    private final LocalSocket fdSocket;
+    private final OutputStream outputStream;
+    private final int requestId;
+
+    public BinaryFdReply(LocalSocket fdSocket, OutputStream outputStream, int requestId) {
+        this.fdSocket = fdSocket;
+        this.outputStream = outputStream;
+        this.requestId = requestId;
+    }
+
+    // packed as ipv4 << 16 | port, 0 when unknown
+    public static void sendAddress(
+            LocalSocket fdSocket, OutputStream outputStream, int requestId, long address) throws IOException {
+        byte[] response = RESPONSE_BUFFER.get();
+        if (0 == address) {
+            synchronized (fdSocket) {
+                write(outputStream, response, STATUS_FAILED, requestId, 5);
+            }
+            return;
+        }
+        int ip = (int) (address >>> 16);
+        response[5] = (byte) (ip >>> 24);
+        response[6] = (byte) (ip >>> 16);
+        response[7] = (byte) (ip >>> 8);
+        response[8] = (byte) ip;
+        response[9] = (byte) (address >>> 8);
+        response[10] = (byte) address;
+        synchronized (fdSocket) {
+            write(outputStream, response, STATUS_ADDRESS, requestId, 11);
+        }
+    }
+
+    public static void sendBadRequest(
+            LocalSocket fdSocket, OutputStream outputStream, int requestId) throws IOException {
+        synchronized (fdSocket) {
+            write(outputStream, RESPONSE_BUFFER.get(), STATUS_BAD_REQUEST, requestId, 5);
+        }
+    }
+
+    @Override
+    protected void writeFd(FileDescriptor fd) throws IOException {
+        FileDescriptor[] fds = FDS_FOR_SEND.get();
+        fds[0] = fd;
+        try {
+            synchronized (fdSocket) {
+                fdSocket.setFileDescriptorsForSend(fds);
+                write(outputStream, RESPONSE_BUFFER.get(), STATUS_FD, requestId, 5);
+            }
+        } finally {
+            fds[0] = null;
+        }
+    }
+
+    @Override
+    protected void writeFailure() throws IOException {
+        synchronized (fdSocket) {
+            write(outputStream, RESPONSE_BUFFER.get(), STATUS_FAILED, requestId, 5);
+        }
+    }
+
+    private static void write(
+            OutputStream outputStream, byte[] response, int status, int requestId, int length) throws IOException {
+        response[0] = (byte) status;
+        response[1] = (byte) (requestId >>> 24);
+        response[2] = (byte) (requestId >>> 16);
+        response[3] = (byte) (requestId >>> 8);
+        response[4] = (byte) requestId;
+        // the fd goes with the first write, keep the status byte alone in it
+        outputStream.write(response, 0, 1);
+        outputStream.write(response, 1, length - 1);
+        outputStream.flush();
+    }
+}
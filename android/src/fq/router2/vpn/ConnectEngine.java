@@ -0,0 +1,454 @@
+package fq.router2.vpn;
+
+import fq.router2.utils.LogUtils;
+import fq.router2.utils.TimerWheel;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NoRouteToHostException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// non-blocking connects for OPEN TCP, one selector thread and a timer wheel for connect timeout.
+// sockets come from the pool, on a miss the blocking protect runs on a fdsock worker and the attempt starts once it is back
+public class ConnectEngine {
+
+    private final ProtectedSocketPool socketPool;
+    private final FdSockExecutor fdSockExecutor;
+    private final NegativeConnectCache negativeConnectCache;
+    private final Queue<ConnectRace> submitted = new ConcurrentLinkedQueue<ConnectRace>();
+    private final Queue<ConnectAttempt> protectedAttempts = new ConcurrentLinkedQueue<ConnectAttempt>();
+    private final TimerWheel timerWheel = new TimerWheel(50, 512);
+    private final AtomicInteger pendingCount = new AtomicInteger();
+    private final AtomicLong raceCount = new AtomicLong();
+    private final AtomicLong raceWonByLaterCandidateCount = new AtomicLong();
+    private final AtomicLong protectedOffThreadCount = new AtomicLong();
+    private final long[] addressKeys = new long[256];
+    private final InetSocketAddress[] addresses = new InetSocketAddress[256];
+    private volatile boolean negativeConnectCacheCleared;
+    private Selector selector;
+    private volatile boolean running;
+
+    public ConnectEngine(
+            ProtectedSocketPool socketPool, FdSockExecutor fdSockExecutor,
+            NegativeConnectCache negativeConnectCache) {
+        this.socketPool = socketPool;
+        this.fdSockExecutor = fdSockExecutor;
+        this.negativeConnectCache = negativeConnectCache;
+    }
+
+    public void start() throws IOException {
+        selector = Selector.open();
+        running = true;
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    loop();
+                } catch (Exception e) {
+                    LogUtils.e("connect engine failed", e);
+                } finally {
+                    closeAll();
+                }
+            }
+        }, "connect-engine").start();
+    }
+
+    public void stop() {
+        running = false;
+        Selector selector = this.selector;
+        if (null != selector) {
+            selector.wakeup();
+        }
+    }
+
+    public void connect(InetSocketAddress dstAddress, int connectTimeout, FdReply reply) {
+        connect(new InetSocketAddress[]{dstAddress}, connectTimeout, 0, reply);
+    }
+
+    // ipv4 as int, the socket address is only built on the engine thread when the attempt starts
+    public void connect(int dstIp, int dstPort, int connectTimeout, FdReply reply) {
+        submit(new ConnectRace(
+                null, new long[]{NegativeConnectCache.toKey(dstIp, dstPort)}, connectTimeout, 0, reply));
+    }
+
+    // happy eyeballs: a new candidate joins the race every staggerMillis, or as soon as one fails,
+    // the first connected one wins and the rest are closed
+    public void connect(InetSocketAddress[] candidates, int connectTimeout, int staggerMillis, FdReply reply) {
+        long[] endpoints = new long[candidates.length];
+        for (int i = 0; i < candidates.length; i++) {
+            endpoints[i] = NegativeConnectCache.toKey(candidates[i]);
+        }
+        submit(new ConnectRace(candidates, endpoints, connectTimeout, staggerMillis, reply));
+    }
+
+    private void submit(ConnectRace race) {
+        FdReply reply = race.reply;
+        if (!running) {
+            try {
+                reply.sendFailure();
+            } catch (Exception e) {
+                LogUtils.e("failed to send connect failure", e);
+            }
+            return;
+        }
+        pendingCount.incrementAndGet();
+        if (race.endpoints.length > 1) {
+            raceCount.incrementAndGet();
+        }
+        submitted.add(race);
+        // stopped in between, the engine thread may have drained the queue already
+        if (!running && submitted.remove(race)) {
+            race.fail();
+            return;
+        }
+        selector.wakeup();
+    }
+
+    // the network changed, endpoints which failed on the old one deserve another try
+    public void clearNegativeConnectCache() {
+        negativeConnectCacheCleared = true;
+        Selector selector = this.selector;
+        if (null != selector) {
+            selector.wakeup();
+        }
+    }
+
+    public String getStats() {
+        return "connect_engine.pending=" + pendingCount.get() + "\n"
+                + "connect_engine.races=" + raceCount.get() + "\n"
+                + "connect_engine.races_won_by_later_candidate=" + raceWonByLaterCandidateCount.get() + "\n"
+                + "connect_engine.protected_off_thread=" + protectedOffThreadCount.get() + "\n"
+                + negativeConnectCache.getStats();
+    }
+
+    private void loop() throws IOException {
+        while (running) {
+            if (timerWheel.size() > 0) {
+                selector.select(timerWheel.getTickMillis());
+            } else {
+                selector.select();
+            }
+            if (negativeConnectCacheCleared) {
+                negativeConnectCacheCleared = false;
+                negativeConnectCache.clear();
+            }
+            ConnectRace race;
+            while (null != (race = submitted.poll())) {
+                race.begin();
+            }
+            ConnectAttempt attempt;
+            while (null != (attempt = protectedAttempts.poll())) {
+                attempt.onSocketTaken();
+            }
+            Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+            while (iterator.hasNext()) {
+                SelectionKey key = iterator.next();
+                iterator.remove();
+                ((ConnectAttempt) key.attachment()).finish();
+            }
+            timerWheel.advance(System.currentTimeMillis());
+        }
+    }
+
+    private void closeAll() {
+        ConnectRace race;
+        while (null != (race = submitted.poll())) {
+            race.fail();
+        }
+        ConnectAttempt attempt;
+        while (null != (attempt = protectedAttempts.poll())) {
+            attempt.close();
+            attempt.race.fail();
+        }
+        try {
+            for (SelectionKey key : selector.keys()) {
+                ((ConnectAttempt) key.attachment()).race.fail();
+            }
+            selector.close();
+        } catch (Exception e) {
+            LogUtils.e("failed to close connect engine selector", e);
+        }
+    }
+
+    // no route while the network is switching says nothing about the endpoint
+    private static boolean isTransient(IOException e) {
+        if (e instanceof NoRouteToHostException) {
+            return true;
+        }
+        String message = e.getMessage();
+        return null != message && (message.contains("ENETUNREACH") || message.contains("EHOSTUNREACH")
+                || message.contains("unreachable"));
+    }
+
+    private void takeOnWorker(final ConnectAttempt attempt) {
+        protectedOffThreadCount.incrementAndGet();
+        final Runnable handBack = new Runnable() {
+            @Override
+            public void run() {
+                protectedAttempts.add(attempt);
+                // stopped in between, nobody is left to pick it up
+                if (!running && protectedAttempts.remove(attempt)) {
+                    if (null != attempt.sock) {
+                        attempt.sock.close();
+                    }
+                    attempt.race.fail();
+                    return;
+                }
+                selector.wakeup();
+            }
+        };
+        fdSockExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    attempt.sock = socketPool.takeTcp();
+                } catch (Exception e) {
+                    LogUtils.e("failed to take tcp socket", e);
+                }
+                handBack.run();
+            }
+        }, handBack);
+    }
+
+    // only called from the engine thread, endpoints to the same server keep their socket address
+    private InetSocketAddress toAddress(long endpoint) throws IOException {
+        int slot = (int) ((endpoint * 0x9E3779B97F4A7C15L) >>> 56);
+        if (addressKeys[slot] != endpoint) {
+            int ip = (int) (endpoint >>> 16);
+            addresses[slot] = new InetSocketAddress(InetAddress.getByAddress(new byte[]{
+                    (byte) (ip >>> 24), (byte) (ip >>> 16), (byte) (ip >>> 8), (byte) ip}), (int) (endpoint & 0xffff));
+            addressKeys[slot] = endpoint;
+        }
+        return addresses[slot];
+    }
+
+    private class ConnectRace extends TimerWheel.Timeout {
+
+        private final InetSocketAddress[] candidates; // null when every endpoint is ipv4
+        private final long[] endpoints; // negative connect cache keys, 0 for non ipv4 candidates
+        private final ConnectAttempt[] attempts;
+        private final int connectTimeout;
+        private final int staggerMillis;
+        private final FdReply reply;
+        private int launchedCount;
+        private int failedCount;
+        private boolean done;
+
+        private ConnectRace(
+                InetSocketAddress[] candidates, long[] endpoints, int connectTimeout, int staggerMillis,
+                FdReply reply) {
+            this.candidates = candidates;
+            this.endpoints = endpoints;
+            this.attempts = new ConnectAttempt[endpoints.length];
+            this.connectTimeout = connectTimeout;
+            this.staggerMillis = staggerMillis;
+            this.reply = reply;
+        }
+
+        private void begin() {
+            launchNext();
+        }
+
+        // stagger delay elapsed
+        @Override
+        protected void expire() {
+            launchNext();
+        }
+
+        private void launchNext() {
+            while (!done && launchedCount < endpoints.length) {
+                int index = launchedCount++;
+                long negativeKey = endpoints[index];
+                try {
+                    InetSocketAddress dstAddress = null == candidates ? toAddress(negativeKey) : candidates[index];
+                    if (negativeConnectCache.contains(negativeKey, System.currentTimeMillis())) {
+                        LogUtils.e("connect " + dstAddress + " skipped as it failed recently");
+                        failedCount++;
+                        continue;
+                    }
+                    attempts[index] = new ConnectAttempt(this, index, dstAddress, negativeKey);
+                } catch (Exception e) {
+                    LogUtils.e("failed to launch connect attempt", e);
+                    failedCount++;
+                    continue;
+                }
+                attempts[index].sock = socketPool.pollTcp();
+                if (null == attempts[index].sock) {
+                    takeOnWorker(attempts[index]);
+                } else {
+                    start(attempts[index]);
+                }
+                return;
+            }
+            if (!done && failedCount == launchedCount) {
+                fail();
+            }
+        }
+
+        private void start(ConnectAttempt attempt) {
+            attempt.begin(connectTimeout);
+            if (!done && !attempt.isClosed() && launchedCount < endpoints.length) {
+                timerWheel.schedule(this, staggerMillis);
+            }
+        }
+
+        private void onAttemptFailed() {
+            failedCount++;
+            if (done) {
+                return;
+            }
+            if (launchedCount < endpoints.length) {
+                cancel();
+                launchNext();
+            } else if (failedCount == launchedCount) {
+                fail();
+            }
+        }
+
+        private void onAttemptConnected(ConnectAttempt winner) {
+            finish();
+            if (winner.index > 0) {
+                raceWonByLaterCandidateCount.incrementAndGet();
+            }
+            fdSockExecutor.connect.recordSince(winner.startedAt);
+            try {
+                long sendStartedAt = System.nanoTime();
+                reply.sendFd(winner.sock.getFileDescriptor());
+                fdSockExecutor.fdSend.recordSince(sendStartedAt);
+            } catch (Exception e) {
+                LogUtils.e("failed to send connected fd", e);
+            } finally {
+                winner.close();
+            }
+        }
+
+        private void fail() {
+            if (done) {
+                return;
+            }
+            finish();
+            try {
+                reply.sendFailure();
+            } catch (Exception e) {
+                LogUtils.e("failed to send connect failure", e);
+            }
+        }
+
+        private void finish() {
+            done = true;
+            cancel();
+            pendingCount.decrementAndGet();
+            for (ConnectAttempt attempt : attempts) {
+                if (null != attempt && !attempt.isClosed() && !attempt.connected) {
+                    attempt.close();
+                }
+            }
+        }
+    }
+
+    private class ConnectAttempt extends TimerWheel.Timeout {
+
+        private final ConnectRace race;
+        private final int index;
+        private final InetSocketAddress dstAddress;
+        private final long negativeKey;
+        private PooledSocket sock; // set by a fdsock worker on a pool miss, handed back through protectedAttempts
+        private long startedAt;
+        private boolean connected;
+        private boolean closed;
+
+        private ConnectAttempt(ConnectRace race, int index, InetSocketAddress dstAddress, long negativeKey) {
+            this.race = race;
+            this.index = index;
+            this.dstAddress = dstAddress;
+            this.negativeKey = negativeKey;
+        }
+
+        private void begin(int connectTimeout) {
+            startedAt = System.nanoTime();
+            try {
+                if (sock.tcpChannel.connect(dstAddress)) {
+                    succeed();
+                } else {
+                    sock.tcpChannel.register(selector, SelectionKey.OP_CONNECT, this);
+                    timerWheel.schedule(this, connectTimeout);
+                }
+            } catch (IOException e) {
+                LogUtils.e("connect " + dstAddress + " failed: " + e);
+                fail(!isTransient(e));
+            }
+        }
+
+        // back on the engine thread with the socket taken by a worker, or without one if that failed
+        private void onSocketTaken() {
+            if (closed) {
+                if (null != sock) {
+                    sock.close();
+                }
+                return;
+            }
+            if (null == sock) {
+                closed = true;
+                race.onAttemptFailed();
+                return;
+            }
+            race.start(this);
+        }
+
+        private void finish() {
+            if (closed) {
+                return;
+            }
+            try {
+                if (sock.tcpChannel.finishConnect()) {
+                    succeed();
+                }
+            } catch (IOException e) {
+                LogUtils.e("connect " + dstAddress + " failed: " + e);
+                fail(!isTransient(e));
+            }
+        }
+
+        @Override
+        protected void expire() {
+            LogUtils.e("connect " + dstAddress + " timed out");
+            fail(true);
+        }
+
+        private boolean isClosed() {
+            return closed;
+        }
+
+        private void succeed() {
+            cancel();
+            connected = true;
+            race.onAttemptConnected(this);
+        }
+
+        private void fail(boolean endpointToBlame) {
+            close();
+            if (endpointToBlame) {
+                negativeConnectCache.put(negativeKey, System.currentTimeMillis());
+            }
+            race.onAttemptFailed();
+        }
+
+        private void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            cancel();
+            if (null != sock) {
+                sock.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package fq.router2.vpn;
+
+import fq.router2.dns.DnsCache;
+import fq.router2.dns.DnsCacheKey;
+import fq.router2.dns.DnsMessages;
+import fq.router2.utils.LogUtils;
+import net.sf.ivmaidns.dns.DNSConnection;
+import net.sf.ivmaidns.dns.DNSMsgHeader;
+import net.sf.ivmaidns.dns.DNSRecord;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+// udp/53 to the dns server handed to the vpn builder: cache hits are answered onto the tun right here,
+// misses go on to the python dns handler as before, and its responses are cached on the way back
+public class DnsInterceptor {
+
+    private final static int DNS_PORT = 53;
+
+    private final int dnsServerIp;
+    private final DnsCache dnsCache;
+    private final AtomicLong answeredCount = new AtomicLong();
+    private final AtomicLong forwardedCount = new AtomicLong();
+    private final AtomicLong cachedCount = new AtomicLong();
+
+    public DnsInterceptor(int dnsServerIp, DnsCache dnsCache) {
+        this.dnsServerIp = dnsServerIp;
+        this.dnsCache = dnsCache;
+    }
+
+    // rewrites a query into its response in place if the cache has it, packet is between 0 and length
+    public boolean answer(ByteBuffer packet, int length) {
+        if (!isUdp(packet, length) || TunPacketEngine.TUN_IP != packet.getInt(IpPacketUtils.IP_SRC_OFFSET)
+                || dnsServerIp != packet.getInt(IpPacketUtils.IP_DST_OFFSET)) {
+            return false;
+        }
+        int ipHeaderLength = IpPacketUtils.getIpHeaderLength(packet);
+        if (DNS_PORT != (packet.getShort(ipHeaderLength + 2) & 0xffff)) {
+            return false;
+        }
+        byte[] query = getPayload(packet, ipHeaderLength, length);
+        if (null == query) {
+            return false;
+        }
+        try {
+            DNSMsgHeader queryHeader = new DNSMsgHeader(query);
+            DNSRecord question = DnsMessages.getQuestion(queryHeader, DNSConnection.decode(query));
+            if (null == question || DNSRecord.IN != question.getRClass()) {
+                forwardedCount.incrementAndGet();
+                return false;
+            }
+            long now = System.currentTimeMillis();
+            DnsCache.Entry entry = dnsCache.get(new DnsCacheKey(question.getRName(), question.getRType()), now);
+            if (null == entry) {
+                forwardedCount.incrementAndGet();
+                return false;
+            }
+            byte[] response = DnsMessages.encodeResponse(
+                    queryHeader, question, entry.rCode, entry.getRecords(now), entry.anCount);
+            if (response.length > DNSMsgHeader.UDP_PACKET_LEN || 28 + response.length > packet.capacity()) {
+                forwardedCount.incrementAndGet();
+                return false;
+            }
+            int appPort = packet.getShort(ipHeaderLength) & 0xffff;
+            int totalLength = 28 + response.length;
+            packet.clear();
+            packet.put(0, (byte) 0x45);
+            packet.put(1, (byte) 0);
+            packet.putShort(2, (short) totalLength);
+            packet.putShort(4, (short) 0);
+            packet.putShort(6, (short) 0);
+            packet.put(8, (byte) 64);
+            packet.put(9, (byte) IpPacketUtils.PROTOCOL_UDP);
+            packet.putInt(IpPacketUtils.IP_SRC_OFFSET, dnsServerIp);
+            packet.putInt(IpPacketUtils.IP_DST_OFFSET, TunPacketEngine.TUN_IP);
+            packet.putShort(20, (short) DNS_PORT);
+            packet.putShort(22, (short) appPort);
+            packet.putShort(24, (short) (8 + response.length));
+            packet.position(28);
+            packet.put(response);
+            IpPacketUtils.fillChecksums(packet, 20, totalLength);
+            packet.position(0);
+            packet.limit(totalLength);
+            answeredCount.incrementAndGet();
+            return true;
+        } catch (Exception e) {
+            LogUtils.e("failed to answer dns query from cache", e);
+            return false;
+        }
+    }
+
+    // a response from the dns server on its way back to the app
+    public void snoop(ByteBuffer packet, int length) {
+        if (!isUdp(packet, length) || dnsServerIp != packet.getInt(IpPacketUtils.IP_SRC_OFFSET)) {
+            return;
+        }
+        int ipHeaderLength = IpPacketUtils.getIpHeaderLength(packet);
+        if (DNS_PORT != (packet.getShort(ipHeaderLength) & 0xffff)) {
+            return;
+        }
+        byte[] response = getPayload(packet, ipHeaderLength, length);
+        if (null == response) {
+            return;
+        }
+        try {
+            DNSMsgHeader header = new DNSMsgHeader(response);
+            if (!header.isResponse() || header.isTruncated() || 1 != header.getQdCount()) {
+                return;
+            }
+            if ((DNSMsgHeader.NOERROR != header.getRCode() || 0 == header.getAnCount())
+                    && !DnsMessages.isNegative(header)) {
+                return;
+            }
+            DNSRecord[] records = DNSConnection.decode(response);
+            if (null == records || records.length < 1 + header.getAnCount()) {
+                return;
+            }
+            DNSRecord question = records[0];
+            dnsCache.put(new DnsCacheKey(question.getRName(), question.getRType()), header.getRCode(),
+                    DnsMessages.getAnswerAndAuthority(header, records), header.getAnCount(),
+                    System.currentTimeMillis());
+            cachedCount.incrementAndGet();
+        } catch (Exception e) {
+            LogUtils.e("failed to cache dns response", e);
+        }
+    }
+
+    public String getStats() {
+        return "dns_interceptor.answered=" + answeredCount.get() + "\n"
+                + "dns_interceptor.forwarded=" + forwardedCount.get() + "\n"
+                + "dns_interceptor.cached=" + cachedCount.get() + "\n";
+    }
+
+    private static boolean isUdp(ByteBuffer packet, int length) {
+        return length >= 28 && (packet.get(0) & 0xf0) == 0x40
+                && IpPacketUtils.PROTOCOL_UDP == IpPacketUtils.getProtocol(packet)
+                && IpPacketUtils.isFirstFragment(packet)
+                && 0 == (packet.getShort(6) & 0x2000); // no more fragments
+    }
+
+    private static byte[] getPayload(ByteBuffer packet, int ipHeaderLength, int length) {
+        int udpLength = packet.getShort(ipHeaderLength + 4) & 0xffff;
+        if (udpLength < 8 + DNSMsgHeader.HEADER_LEN || ipHeaderLength + udpLength > length) {
+            return null;
+        }
+        byte[] payload = new byte[udpLength - 8];
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] = packet.get(ipHeaderLength + 8 + i);
+        }
+        return payload;
+    }
+}
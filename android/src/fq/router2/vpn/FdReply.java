@@ -0,0 +1,33 @@
+package fq.router2.vpn;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+
+public abstract class FdReply {
+
+    private boolean replied;
+
+    public synchronized void sendFd(FileDescriptor fd) throws IOException {
+        if (replied) {
+            return;
+        }
+        replied = true;
+        writeFd(fd);
+    }
+
+    public synchronized void sendFailure() throws IOException {
+        if (replied) {
+            return;
+        }
+        replied = true;
+        writeFailure();
+    }
+
+    public synchronized boolean isReplied() {
+        return replied;
+    }
+
+    protected abstract void writeFd(FileDescriptor fd) throws IOException;
+
+    protected abstract void writeFailure() throws IOException;
+}
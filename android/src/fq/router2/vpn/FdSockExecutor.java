@@ -0,0 +1,93 @@
+package fq.router2.vpn;
+
+import fq.router2.utils.LatencyHistogram;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// bounded work queue for fdsock requests, a full queue either fails fast or spills over to one overflow thread.
+// never runs a task in the submitting thread, that is the accept thread and one slow request would stall them all
+public class FdSockExecutor {
+
+    public final static String REJECT_POLICY_FAIL_FAST = "FAIL_FAST";
+    public final static String REJECT_POLICY_OVERFLOW = "OVERFLOW";
+
+    private final ThreadPoolExecutor executor;
+    private final ThreadPoolExecutor overflowExecutor;
+    private final AtomicLong overflowedCount = new AtomicLong();
+    private final AtomicLong submittedCount = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+    public final LatencyHistogram queueWait = new LatencyHistogram("fdsock.queue_wait");
+    public final LatencyHistogram connect = new LatencyHistogram("fdsock.connect");
+    public final LatencyHistogram fdSend = new LatencyHistogram("fdsock.fd_send");
+
+    public FdSockExecutor(int threadCount, int queueCapacity, String rejectPolicy) {
+        executor = new ThreadPoolExecutor(
+                threadCount, threadCount, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(Math.max(1, queueCapacity)),
+                new ThreadPoolExecutor.AbortPolicy());
+        if (REJECT_POLICY_OVERFLOW.equals(rejectPolicy)) {
+            overflowExecutor = new ThreadPoolExecutor(
+                    1, 1, 0, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<Runnable>(Math.max(1, queueCapacity)),
+                    new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable runnable) {
+                            return new Thread(runnable, "fdsock-overflow");
+                        }
+                    }, new ThreadPoolExecutor.AbortPolicy());
+        } else {
+            overflowExecutor = null;
+        }
+    }
+
+    public void submit(final Runnable task, Runnable onRejected) {
+        final long submittedAt = System.nanoTime();
+        submittedCount.incrementAndGet();
+        // the same wrapper on both, the overflowed tasks are the ones waiting longest
+        Runnable timedTask = new Runnable() {
+            @Override
+            public void run() {
+                queueWait.recordSince(submittedAt);
+                task.run();
+            }
+        };
+        try {
+            executor.execute(timedTask);
+        } catch (RejectedExecutionException e) {
+            if (null != overflowExecutor) {
+                try {
+                    overflowExecutor.execute(timedTask);
+                    overflowedCount.incrementAndGet();
+                    return;
+                } catch (RejectedExecutionException e2) {
+                    // overflow full as well
+                }
+            }
+            rejectedCount.incrementAndGet();
+            onRejected.run();
+        }
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+        if (null != overflowExecutor) {
+            overflowExecutor.shutdown();
+        }
+    }
+
+    public String getStats() {
+        return "fdsock.submitted=" + submittedCount.get() + "\n"
+                + "fdsock.overflowed=" + overflowedCount.get() + "\n"
+                + "fdsock.rejected=" + rejectedCount.get() + "\n"
+                + "fdsock.queue_depth=" + executor.getQueue().size() + "\n"
+                + "fdsock.active_threads=" + executor.getActiveCount() + "\n"
+                + queueWait.getStats()
+                + connect.getStats()
+                + fdSend.getStats();
+    }
+}
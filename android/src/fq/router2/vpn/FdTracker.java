@@ -0,0 +1,53 @@
+package fq.router2.vpn;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// every socket created for fdsock is registered here until it is closed
+public class FdTracker {
+
+    private final Set<PooledSocket> liveSockets = Collections.newSetFromMap(
+            new ConcurrentHashMap<PooledSocket, Boolean>());
+    private final AtomicLong openedCount = new AtomicLong();
+    private final AtomicLong releasedCount = new AtomicLong();
+    private final AtomicInteger peakLiveCount = new AtomicInteger();
+
+    public void track(PooledSocket sock) {
+        liveSockets.add(sock);
+        openedCount.incrementAndGet();
+        int liveCount = liveSockets.size();
+        int peak;
+        while (liveCount > (peak = peakLiveCount.get())) {
+            if (peakLiveCount.compareAndSet(peak, liveCount)) {
+                break;
+            }
+        }
+    }
+
+    public void release(PooledSocket sock) {
+        if (liveSockets.remove(sock)) {
+            releasedCount.incrementAndGet();
+        }
+    }
+
+    public int getLiveCount() {
+        return liveSockets.size();
+    }
+
+    public void closeAll() {
+        for (PooledSocket sock : new ArrayList<PooledSocket>(liveSockets)) {
+            sock.close();
+        }
+    }
+
+    public String getStats() {
+        return "fd_tracker.live=" + liveSockets.size() + "\n"
+                + "fd_tracker.peak=" + peakLiveCount.get() + "\n"
+                + "fd_tracker.opened=" + openedCount.get() + "\n"
+                + "fd_tracker.released=" + releasedCount.get() + "\n";
+    }
+}
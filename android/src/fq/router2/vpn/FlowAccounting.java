@@ -0,0 +1,205 @@
+package fq.router2.vpn;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// bytes and packets per flow seen on the tun. the 5-tuple is protocol, tun ip, sport, dst ip, dport;
+// the tun ip never changes, so the key is protocol plus sport << 48 | dst ip << 16 | dport.
+// only the tun reader inserts (flows always start from the app side), every thread writing to the tun
+// looks flows up and adds to the in counters. counters are striped by direction so the reader and
+// the writers of a flow never touch the same cell. when the table is full it is rebuilt without idle
+// flows (at most once a second) and republished, increments racing with a rebuild may be lost.
+public class FlowAccounting {
+
+    private final static int OUT_BYTES = 0;
+    private final static int OUT_PACKETS = 1;
+    private final static int IN_BYTES = 2;
+    private final static int IN_PACKETS = 3;
+    private final static int STARTED_AT = 4;
+    private final static int LAST_ACTIVE_AT = 5;
+    private final static int FIELDS = 6;
+    private final static long MIN_REBUILD_INTERVAL_MILLIS = 1000;
+
+    private final int capacity;
+    private final long idleMillis;
+    private final int topN;
+    private volatile Table table;
+    private long nextRebuildAt;
+    private final AtomicInteger rebuildCount = new AtomicInteger();
+    private final AtomicLong untrackedCount = new AtomicLong();
+
+    public FlowAccounting(int capacity, long idleMillis, int topN) {
+        int powerOfTwo = 16;
+        while (powerOfTwo < capacity) {
+            powerOfTwo <<= 1;
+        }
+        this.capacity = powerOfTwo;
+        this.idleMillis = idleMillis;
+        this.topN = topN;
+        this.table = new Table(powerOfTwo);
+    }
+
+    public static long toKey(int srcPort, int dstIp, int dstPort) {
+        return ((long) srcPort << 48) | ((dstIp & 0xffffffffL) << 16) | dstPort;
+    }
+
+    // tun reader thread only
+    public void recordOutbound(int protocol, long key, int length, long now) {
+        Table table = this.table;
+        int slot = table.find(protocol, key);
+        if (slot < 0) {
+            if (table.size >= capacity * 3 / 4) {
+                if (now < nextRebuildAt) {
+                    untrackedCount.incrementAndGet();
+                    return;
+                }
+                // full of active flows, do not scan the table again for every new flow
+                nextRebuildAt = now + MIN_REBUILD_INTERVAL_MILLIS;
+                table = rebuild(now);
+                if (table.size >= capacity * 3 / 4) {
+                    untrackedCount.incrementAndGet();
+                    return;
+                }
+            }
+            slot = table.insert(protocol, key, now);
+        }
+        int base = slot * FIELDS;
+        table.counters.addAndGet(base + OUT_BYTES, length);
+        table.counters.incrementAndGet(base + OUT_PACKETS);
+        table.counters.lazySet(base + LAST_ACTIVE_AT, now);
+    }
+
+    // any thread writing to the tun
+    public void recordInbound(int protocol, long key, int length) {
+        Table table = this.table;
+        int slot = table.find(protocol, key);
+        if (slot < 0) {
+            return;
+        }
+        int base = slot * FIELDS;
+        table.counters.addAndGet(base + IN_BYTES, length);
+        table.counters.incrementAndGet(base + IN_PACKETS);
+    }
+
+    public String getStats() {
+        Table table = this.table;
+        long now = System.currentTimeMillis();
+        int[] top = new int[Math.max(0, topN)];
+        long[] topBytes = new long[top.length];
+        int topSize = 0;
+        for (int slot = 0; slot < capacity; slot++) {
+            if (0 == table.keys.get(slot * 2)) {
+                continue;
+            }
+            int base = slot * FIELDS;
+            long bytes = table.counters.get(base + OUT_BYTES) + table.counters.get(base + IN_BYTES);
+            // insertion into the small sorted top n
+            int i = topSize < top.length ? topSize++ : top.length;
+            while (i > 0 && topBytes[i - 1] < bytes) {
+                if (i < top.length) {
+                    top[i] = top[i - 1];
+                    topBytes[i] = topBytes[i - 1];
+                }
+                i--;
+            }
+            if (i < top.length) {
+                top[i] = slot;
+                topBytes[i] = bytes;
+            }
+        }
+        StringBuilder stats = new StringBuilder();
+        stats.append("flow_accounting.flows=").append(table.size).append("\n");
+        stats.append("flow_accounting.rebuilds=").append(rebuildCount.get()).append("\n");
+        stats.append("flow_accounting.untracked=").append(untrackedCount.get()).append("\n");
+        for (int i = 0; i < topSize; i++) {
+            int slot = top[i];
+            int base = slot * FIELDS;
+            long protocol = table.keys.get(slot * 2);
+            long key = table.keys.get(slot * 2 + 1);
+            stats.append("flow_accounting.top.").append(i).append("=")
+                    .append(IpPacketUtils.PROTOCOL_TCP == protocol ? "tcp " : "udp ")
+                    .append(IpPacketUtils.formatIp(TunPacketEngine.TUN_IP)).append(":").append(key >>> 48)
+                    .append(">").append(IpPacketUtils.formatIp((int) (key >>> 16))).append(":").append(key & 0xffff)
+                    .append(" out=").append(table.counters.get(base + OUT_BYTES))
+                    .append("/").append(table.counters.get(base + OUT_PACKETS))
+                    .append(" in=").append(table.counters.get(base + IN_BYTES))
+                    .append("/").append(table.counters.get(base + IN_PACKETS))
+                    .append(" age_ms=").append(now - table.counters.get(base + STARTED_AT))
+                    .append(" idle_ms=").append(now - table.counters.get(base + LAST_ACTIVE_AT))
+                    .append("\n");
+        }
+        return stats.toString();
+    }
+
+    private Table rebuild(long now) {
+        Table old = this.table;
+        Table rebuilt = new Table(capacity);
+        for (int slot = 0; slot < capacity; slot++) {
+            long protocol = old.keys.get(slot * 2);
+            if (0 == protocol) {
+                continue;
+            }
+            int base = slot * FIELDS;
+            if (now - old.counters.get(base + LAST_ACTIVE_AT) >= idleMillis) {
+                continue;
+            }
+            int newSlot = rebuilt.insert((int) protocol, old.keys.get(slot * 2 + 1), 0);
+            for (int field = 0; field < FIELDS; field++) {
+                rebuilt.counters.set(newSlot * FIELDS + field, old.counters.get(base + field));
+            }
+        }
+        rebuildCount.incrementAndGet();
+        this.table = rebuilt;
+        return rebuilt;
+    }
+
+    private static class Table {
+
+        // slot * 2 is the protocol (0 for empty), slot * 2 + 1 the packed ports and dst ip
+        private final AtomicLongArray keys;
+        private final AtomicLongArray counters;
+        private final int mask;
+        private int size;
+
+        private Table(int capacity) {
+            this.keys = new AtomicLongArray(capacity * 2);
+            this.counters = new AtomicLongArray(capacity * FIELDS);
+            this.mask = capacity - 1;
+        }
+
+        private int find(int protocol, long key) {
+            for (int i = hash(protocol, key); ; i = (i + 1) & mask) {
+                long slotProtocol = keys.get(i * 2);
+                if (0 == slotProtocol) {
+                    return -1;
+                }
+                if (protocol == slotProtocol && key == keys.get(i * 2 + 1)) {
+                    return i;
+                }
+            }
+        }
+
+        // counters first, then the key, the protocol last publishes the slot to other threads
+        private int insert(int protocol, long key, long now) {
+            for (int i = hash(protocol, key); ; i = (i + 1) & mask) {
+                if (0 == keys.get(i * 2)) {
+                    counters.set(i * FIELDS + STARTED_AT, now);
+                    counters.set(i * FIELDS + LAST_ACTIVE_AT, now);
+                    keys.set(i * 2 + 1, key);
+                    keys.set(i * 2, protocol);
+                    size++;
+                    return i;
+                }
+            }
+        }
+
+        // sport sits in the top bits, so mix them down before masking
+        private int hash(int protocol, long key) {
+            long h = key ^ protocol;
+            h = (h ^ (h >>> 33)) * 0xff51afd7ed558ccdL;
+            h = (h ^ (h >>> 33)) * 0xc4ceb9fe1a85ec53L;
+            return (int) (h ^ (h >>> 33)) & mask;
+        }
+    }
+}
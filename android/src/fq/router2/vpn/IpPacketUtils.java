@@ -0,0 +1,115 @@
+package fq.router2.vpn;
+
+import java.nio.ByteBuffer;
+
+public class IpPacketUtils {
+
+    public final static int PROTOCOL_TCP = 6;
+    public final static int PROTOCOL_UDP = 17;
+
+    public final static int IP_CHECKSUM_OFFSET = 10;
+    public final static int IP_SRC_OFFSET = 12;
+    public final static int IP_DST_OFFSET = 16;
+
+    public static int getIpHeaderLength(ByteBuffer packet) {
+        return (packet.get(0) & 0x0f) * 4;
+    }
+
+    public static int getProtocol(ByteBuffer packet) {
+        return packet.get(9) & 0xff;
+    }
+
+    public static boolean isFirstFragment(ByteBuffer packet) {
+        return (packet.getShort(6) & 0x1fff) == 0;
+    }
+
+    public static int getL4ChecksumOffset(int protocol, int ipHeaderLength) {
+        return ipHeaderLength + (PROTOCOL_TCP == protocol ? 16 : 6);
+    }
+
+    public static int sum(ByteBuffer packet, int offset, int length, int initialSum) {
+        long sum = initialSum & 0xffffffffL;
+        int end = offset + length - 1;
+        int i = offset;
+        for (; i < end; i += 2) {
+            sum += packet.getShort(i) & 0xffff;
+        }
+        if (i == end) {
+            sum += (packet.get(i) & 0xff) << 8;
+        }
+        while ((sum >>> 16) != 0) {
+            sum = (sum & 0xffff) + (sum >>> 16);
+        }
+        return (int) sum;
+    }
+
+    public static int pseudoHeaderSum(int srcIp, int dstIp, int protocol, int l4Length) {
+        return (srcIp >>> 16) + (srcIp & 0xffff) + (dstIp >>> 16) + (dstIp & 0xffff) + protocol + l4Length;
+    }
+
+    // fill in ip and tcp/udp checksums of a packet built from scratch
+    public static void fillChecksums(ByteBuffer packet, int ipHeaderLength, int totalLength) {
+        packet.putShort(IP_CHECKSUM_OFFSET, (short) 0);
+        packet.putShort(IP_CHECKSUM_OFFSET, (short) ~sum(packet, 0, ipHeaderLength, 0));
+        int protocol = getProtocol(packet);
+        int l4ChecksumOffset = getL4ChecksumOffset(protocol, ipHeaderLength);
+        int l4Length = totalLength - ipHeaderLength;
+        packet.putShort(l4ChecksumOffset, (short) 0);
+        int pseudoSum = pseudoHeaderSum(
+                packet.getInt(IP_SRC_OFFSET), packet.getInt(IP_DST_OFFSET), protocol, l4Length);
+        int checksum = ~sum(packet, ipHeaderLength, l4Length, pseudoSum) & 0xffff;
+        if (PROTOCOL_UDP == protocol && 0 == checksum) {
+            checksum = 0xffff;
+        }
+        packet.putShort(l4ChecksumOffset, (short) checksum);
+    }
+
+    // RFC 1624: HC' = ~(~HC + ~m + m')
+    public static int updateChecksum(int checksum, int oldWord, int newWord) {
+        int sum = (~checksum & 0xffff) + (~oldWord & 0xffff) + (newWord & 0xffff);
+        sum = (sum & 0xffff) + (sum >>> 16);
+        sum = (sum & 0xffff) + (sum >>> 16);
+        return ~sum & 0xffff;
+    }
+
+    public static int updateChecksumForInt(int checksum, int oldInt, int newInt) {
+        checksum = updateChecksum(checksum, oldInt >>> 16, newInt >>> 16);
+        return updateChecksum(checksum, oldInt & 0xffff, newInt & 0xffff);
+    }
+
+    public static String formatIp(int ip) {
+        return ((ip >>> 24) & 0xff) + "." + ((ip >>> 16) & 0xff) + "." + ((ip >>> 8) & 0xff) + "." + (ip & 0xff);
+    }
+
+    public static int parseIp(String ip) {
+        int value = 0;
+        int octet = 0;
+        int digits = 0;
+        int dots = 0;
+        for (int i = 0; i < ip.length(); i++) {
+            char c = ip.charAt(i);
+            if (c >= '0' && c <= '9' && digits < 3) {
+                octet = octet * 10 + (c - '0');
+                digits++;
+            } else if ('.' == c && digits > 0 && dots < 3) {
+                value = (value << 8) | checkOctet(ip, octet);
+                octet = 0;
+                digits = 0;
+                dots++;
+            } else {
+                throw new IllegalArgumentException("invalid ipv4: " + ip);
+            }
+        }
+        if (3 != dots || 0 == digits) {
+            throw new IllegalArgumentException("invalid ipv4: " + ip);
+        }
+        return (value << 8) | checkOctet(ip, octet);
+    }
+
+    private static int checkOctet(String ip, int octet) {
+        if (octet > 255) {
+            throw new IllegalArgumentException("invalid ipv4: " + ip);
+        }
+        return octet;
+    }
+}
@@ -0,0 +1,50 @@
+package fq.router2.vpn;
+
+import android.net.LocalSocket;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.OutputStream;
+
+// status byte ('*' carrying the fd, or '!') followed by "<request id>\n",
+// or '=' followed by "<request id>\n<text>\n" for requests answered with text
+public class MultiplexedFdReply extends FdReply {
+
+    private final LocalSocket fdSocket;
+    private final OutputStream outputStream;
+    private final byte[] requestId;
+
+    public MultiplexedFdReply(LocalSocket fdSocket, OutputStream outputStream, String requestId) {
+        this.fdSocket = fdSocket;
+        this.outputStream = outputStream;
+        this.requestId = (requestId + "\n").getBytes();
+    }
+
+    @Override
+    protected void writeFd(FileDescriptor fd) throws IOException {
+        synchronized (fdSocket) {
+            fdSocket.setFileDescriptorsForSend(new FileDescriptor[]{fd});
+            outputStream.write('*');
+            outputStream.write(requestId);
+            outputStream.flush();
+        }
+    }
+
+    public void sendText(String text) throws IOException {
+        synchronized (fdSocket) {
+            outputStream.write('=');
+            outputStream.write(requestId);
+            outputStream.write((text + "\n").getBytes());
+            outputStream.flush();
+        }
+    }
+
+    @Override
+    protected void writeFailure() throws IOException {
+        synchronized (fdSocket) {
+            outputStream.write('!');
+            outputStream.write(requestId);
+            outputStream.flush();
+        }
+    }
+}
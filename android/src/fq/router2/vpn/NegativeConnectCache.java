@@ -0,0 +1,160 @@
+package fq.router2.vpn;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.AtomicLong;
+
+// endpoints which recently refused or timed out, open addressing on ipv4 << 16 | port
+// not thread safe, only used from the connect engine thread
+public class NegativeConnectCache {
+
+    private final static long OCCUPIED = 1L << 48;
+
+    private final long[] keys;
+    private final long[] expireAts;
+    private final int mask;
+    private final long backoffMillis;
+    private int size;
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong insertCount = new AtomicLong();
+    private final AtomicLong evictionCount = new AtomicLong();
+
+    public NegativeConnectCache(int capacity, long backoffMillis) {
+        int powerOfTwo = 16;
+        while (powerOfTwo < capacity) {
+            powerOfTwo <<= 1;
+        }
+        this.keys = new long[powerOfTwo];
+        this.expireAts = new long[powerOfTwo];
+        this.mask = powerOfTwo - 1;
+        this.backoffMillis = backoffMillis;
+    }
+
+    public static long toKey(InetSocketAddress address) {
+        InetAddress ip = address.getAddress();
+        if (null == ip) {
+            return 0;
+        }
+        byte[] ipBytes = ip.getAddress();
+        if (4 != ipBytes.length) {
+            return 0;
+        }
+        int ipValue = ((ipBytes[0] & 0xff) << 24) | ((ipBytes[1] & 0xff) << 16)
+                | ((ipBytes[2] & 0xff) << 8) | (ipBytes[3] & 0xff);
+        return toKey(ipValue, address.getPort());
+    }
+
+    public static long toKey(int ip, int port) {
+        return OCCUPIED | ((ip & 0xffffffffL) << 16) | (port & 0xffff);
+    }
+
+    public boolean contains(long key, long now) {
+        if (0 == key || backoffMillis <= 0) {
+            return false;
+        }
+        int slot = find(key);
+        if (slot < 0) {
+            return false;
+        }
+        if (expireAts[slot] <= now) {
+            removeAt(slot);
+            return false;
+        }
+        hitCount.incrementAndGet();
+        return true;
+    }
+
+    public void put(long key, long now) {
+        if (0 == key || backoffMillis <= 0) {
+            return;
+        }
+        int slot = find(key);
+        if (slot >= 0) {
+            expireAts[slot] = now + backoffMillis;
+            return;
+        }
+        if (size >= keys.length * 3 / 4) {
+            purgeExpired(now);
+        }
+        insertCount.incrementAndGet();
+        int home = hash(key);
+        if (size >= keys.length * 3 / 4) {
+            // still full of live entries. an occupied home slot is taken over in place, probe chains stay intact.
+            // otherwise the next live entry makes room, so size never grows past the limit
+            evictionCount.incrementAndGet();
+            if (0 != keys[home]) {
+                keys[home] = key;
+                expireAts[home] = now + backoffMillis;
+                return;
+            }
+            int victim = home;
+            while (0 == keys[victim]) {
+                victim = (victim + 1) & mask;
+            }
+            removeAt(victim);
+        }
+        for (int i = home; ; i = (i + 1) & mask) {
+            if (0 == keys[i]) {
+                keys[i] = key;
+                expireAts[i] = now + backoffMillis;
+                size++;
+                return;
+            }
+        }
+    }
+
+    public void clear() {
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = 0;
+        }
+        size = 0;
+    }
+
+    public String getStats() {
+        return "negative_connect_cache.size=" + size + "\n"
+                + "negative_connect_cache.hits=" + hitCount.get() + "\n"
+                + "negative_connect_cache.inserts=" + insertCount.get() + "\n"
+                + "negative_connect_cache.evictions=" + evictionCount.get() + "\n";
+    }
+
+    private int find(long key) {
+        for (int i = hash(key); ; i = (i + 1) & mask) {
+            if (key == keys[i]) {
+                return i;
+            }
+            if (0 == keys[i]) {
+                return -1;
+            }
+        }
+    }
+
+    private int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h >>> 40) & mask;
+    }
+
+    private void purgeExpired(long now) {
+        for (int i = 0; i < keys.length; i++) {
+            while (0 != keys[i] && expireAts[i] <= now) {
+                removeAt(i); // may shift a later entry into slot i
+            }
+        }
+    }
+
+    // backward shift deletion keeps linear probing chains without tombstones
+    private void removeAt(int slot) {
+        keys[slot] = 0;
+        size--;
+        int hole = slot;
+        for (int i = (slot + 1) & mask; 0 != keys[i]; i = (i + 1) & mask) {
+            int home = hash(keys[i]);
+            boolean movable = hole <= i ? (home <= hole || home > i) : (home <= hole && home > i);
+            if (movable) {
+                keys[hole] = keys[i];
+                expireAts[hole] = expireAts[i];
+                keys[i] = 0;
+                hole = i;
+            }
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package fq.router2.vpn;
+
+import android.net.LocalSocket;
+import fq.router2.utils.LogUtils;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+// owns the fdsock connection, which is closed once the reply is written
+public class OneShotFdReply extends FdReply {
+
+    private final LocalSocket fdSocket;
+    private final InputStream inputStream;
+    private final OutputStream outputStream;
+
+    public OneShotFdReply(LocalSocket fdSocket, InputStream inputStream, OutputStream outputStream) {
+        this.fdSocket = fdSocket;
+        this.inputStream = inputStream;
+        this.outputStream = outputStream;
+    }
+
+    @Override
+    protected void writeFd(FileDescriptor fd) throws IOException {
+        try {
+            fdSocket.setFileDescriptorsForSend(new FileDescriptor[]{fd});
+            outputStream.write('*');
+            outputStream.flush();
+        } finally {
+            close(fdSocket, inputStream, outputStream);
+        }
+    }
+
+    @Override
+    protected void writeFailure() throws IOException {
+        try {
+            outputStream.write('!');
+            outputStream.flush();
+        } finally {
+            close(fdSocket, inputStream, outputStream);
+        }
+    }
+
+    public static void close(LocalSocket fdSocket, InputStream inputStream, OutputStream outputStream) {
+        try {
+            inputStream.close();
+        } catch (Exception e) {
+            LogUtils.e("failed to close input stream", e);
+        }
+        try {
+            outputStream.close();
+        } catch (Exception e) {
+            LogUtils.e("failed to close output stream", e);
+        }
+        try {
+            fdSocket.close();
+        } catch (Exception e) {
+            LogUtils.e("failed to close fdsock", e);
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package fq.router2.vpn;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// direct buffers of one tun packet each, allocated on first use and recycled after that
+public class PacketBufferPool {
+
+    private final int bufferSize;
+    private final int capacity;
+    private final BlockingQueue<ByteBuffer> free;
+    private final AtomicInteger allocatedCount = new AtomicInteger();
+    private final AtomicLong exhaustedCount = new AtomicLong();
+
+    public PacketBufferPool(int capacity, int bufferSize) {
+        this.capacity = Math.max(1, capacity);
+        this.bufferSize = bufferSize;
+        this.free = new ArrayBlockingQueue<ByteBuffer>(this.capacity);
+    }
+
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = free.poll();
+        if (null != buffer) {
+            buffer.clear();
+            return buffer;
+        }
+        if (allocatedCount.incrementAndGet() > capacity) {
+            allocatedCount.decrementAndGet();
+            exhaustedCount.incrementAndGet();
+            return null;
+        }
+        return ByteBuffer.allocateDirect(bufferSize);
+    }
+
+    public void release(ByteBuffer buffer) {
+        free.offer(buffer);
+    }
+
+    public String getStats() {
+        int allocated = allocatedCount.get();
+        return "packet_buffer_pool.capacity=" + capacity + "\n"
+                + "packet_buffer_pool.allocated=" + allocated + "\n"
+                + "packet_buffer_pool.in_use=" + (allocated - free.size()) + "\n"
+                + "packet_buffer_pool.exhausted=" + exhaustedCount.get() + "\n";
+    }
+}
@@ -0,0 +1,156 @@
+package fq.router2.vpn;
+
+import fq.router2.utils.LogUtils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+// keeps the first bytes of the last packets read from or written to the tun in a memory mapped ring,
+// so a capture of the last few seconds costs a copy per packet and no syscall. every thread touching
+// the tun claims slots with one atomic increment. the ring is made of fixed size slots
+//   sequence (8), pcap record header (16), first snapLength bytes of the packet
+// and dump() linearizes it from the oldest slot into a plain pcap file (raw ip link type)
+public class PacketCapture {
+
+    private final static int LINKTYPE_RAW = 101;
+    private final static int SLOT_HEADER_LENGTH = 8 + 16;
+    private final static int MAX_RING_SIZE = 64 * 1024 * 1024;
+
+    private final File ringFile;
+    private final File dumpFile;
+    private volatile Ring ring;
+
+    public PacketCapture(File ringFile, File dumpFile) {
+        this.ringFile = ringFile;
+        this.dumpFile = dumpFile;
+    }
+
+    public synchronized void start(int snapLength, int slotCount) throws IOException {
+        stop();
+        Ring ring = new Ring(snapLength, slotCount);
+        // never truncate the old ring, a tun thread may still be writing into its mapping.
+        // unlinked, its pages live on until unmapped, and the new ring gets a fresh zeroed file
+        if (ringFile.exists() && !ringFile.delete()) {
+            throw new IOException("failed to delete " + ringFile);
+        }
+        RandomAccessFile file = new RandomAccessFile(ringFile, "rw");
+        try {
+            ring.buffer = file.getChannel().map(
+                    FileChannel.MapMode.READ_WRITE, 0, (long) ring.slotLength * ring.slotCount);
+        } finally {
+            file.close(); // the mapping stays valid
+        }
+        this.ring = ring;
+        LogUtils.i("packet capture started: " + ring.snapLength + " bytes of last " + ring.slotCount + " packets");
+    }
+
+    public synchronized void stop() {
+        if (null != ring) {
+            ring = null;
+            LogUtils.i("packet capture stopped");
+        }
+    }
+
+    public boolean isCapturing() {
+        return null != ring;
+    }
+
+    // packet between 0 and length, position and limit are left alone
+    public void capture(ByteBuffer packet, int length) {
+        Ring ring = this.ring;
+        if (null == ring) {
+            return;
+        }
+        long sequence = ring.nextSequence.getAndIncrement();
+        int offset = (int) (sequence % ring.slotCount) * ring.slotLength;
+        int captured = Math.min(length, ring.snapLength);
+        long now = System.currentTimeMillis();
+        MappedByteBuffer buffer = ring.buffer;
+        int dataOffset = offset + SLOT_HEADER_LENGTH;
+        int i = 0;
+        for (; i + 8 <= captured; i += 8) {
+            buffer.putLong(dataOffset + i, packet.getLong(i));
+        }
+        for (; i < captured; i++) {
+            buffer.put(dataOffset + i, packet.get(i));
+        }
+        buffer.putInt(offset + 8, (int) (now / 1000));
+        buffer.putInt(offset + 12, (int) (now % 1000) * 1000);
+        buffer.putInt(offset + 16, captured);
+        buffer.putInt(offset + 20, length);
+        // written last, the slot is only dumped once its sequence matches
+        buffer.putLong(offset, sequence + 1);
+    }
+
+    // can run while capturing, the newest records may be torn then
+    public synchronized File dump() throws IOException {
+        Ring ring = this.ring;
+        if (null == ring) {
+            return null;
+        }
+        long next = ring.nextSequence.get();
+        long first = Math.max(0, next - ring.slotCount);
+        FileChannel output = new FileOutputStream(dumpFile).getChannel();
+        try {
+            ByteBuffer header = ByteBuffer.allocate(24);
+            header.putInt(0xa1b2c3d4);
+            header.putShort((short) 2);
+            header.putShort((short) 4);
+            header.putInt(0); // gmt offset
+            header.putInt(0); // timestamp accuracy
+            header.putInt(ring.snapLength);
+            header.putInt(LINKTYPE_RAW);
+            header.flip();
+            output.write(header);
+            ByteBuffer record = ByteBuffer.allocate(16 + ring.snapLength);
+            for (long sequence = first; sequence < next; sequence++) {
+                int offset = (int) (sequence % ring.slotCount) * ring.slotLength;
+                if (ring.buffer.getLong(offset) != sequence + 1) {
+                    continue; // claimed but not written yet, or already overwritten
+                }
+                // a torn slot may carry any length, never copy more than the slot holds
+                int captured = Math.max(0, Math.min(ring.snapLength, ring.buffer.getInt(offset + 16)));
+                record.clear();
+                record.putInt(ring.buffer.getInt(offset + 8));
+                record.putInt(ring.buffer.getInt(offset + 12));
+                record.putInt(captured);
+                record.putInt(ring.buffer.getInt(offset + 20));
+                for (int i = 0; i < captured; i++) {
+                    record.put(ring.buffer.get(offset + SLOT_HEADER_LENGTH + i));
+                }
+                record.flip();
+                output.write(record);
+            }
+        } finally {
+            output.close();
+        }
+        return dumpFile;
+    }
+
+    public String getStats() {
+        Ring ring = this.ring;
+        return "packet_capture.on=" + (null != ring) + "\n"
+                + "packet_capture.packets=" + (null == ring ? 0 : ring.nextSequence.get()) + "\n";
+    }
+
+    private static class Ring {
+
+        private final int snapLength;
+        private final int slotCount;
+        private final int slotLength;
+        private final AtomicLong nextSequence = new AtomicLong();
+        private MappedByteBuffer buffer;
+
+        private Ring(int snapLength, int slotCount) {
+            this.snapLength = Math.max(20, Math.min(TunPacketEngine.MTU, snapLength));
+            this.slotLength = SLOT_HEADER_LENGTH + this.snapLength;
+            this.slotCount = Math.max(1, Math.min(MAX_RING_SIZE / slotLength, slotCount));
+        }
+    }
+}
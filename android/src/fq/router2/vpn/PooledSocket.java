@@ -0,0 +1,63 @@
+package fq.router2.vpn;
+
+import android.os.ParcelFileDescriptor;
+import fq.router2.utils.LogUtils;
+
+import java.io.FileDescriptor;
+import java.net.DatagramSocket;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class PooledSocket {
+
+    public final SocketChannel tcpChannel;
+    public final DatagramSocket udpSocket;
+    public final ParcelFileDescriptor fd;
+    public final long createdAt;
+    private final FdTracker fdTracker;
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    public PooledSocket(FdTracker fdTracker, SocketChannel tcpChannel, ParcelFileDescriptor fd) {
+        this(fdTracker, tcpChannel, null, fd);
+    }
+
+    public PooledSocket(FdTracker fdTracker, DatagramSocket udpSocket, ParcelFileDescriptor fd) {
+        this(fdTracker, null, udpSocket, fd);
+    }
+
+    private PooledSocket(
+            FdTracker fdTracker, SocketChannel tcpChannel, DatagramSocket udpSocket, ParcelFileDescriptor fd) {
+        this.fdTracker = fdTracker;
+        this.tcpChannel = tcpChannel;
+        this.udpSocket = udpSocket;
+        this.fd = fd;
+        this.createdAt = System.currentTimeMillis();
+        fdTracker.track(this);
+    }
+
+    public FileDescriptor getFileDescriptor() {
+        return fd.getFileDescriptor();
+    }
+
+    public void close() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        fdTracker.release(this);
+        try {
+            if (null != tcpChannel) {
+                tcpChannel.close();
+            }
+            if (null != udpSocket) {
+                udpSocket.close();
+            }
+        } catch (Exception e) {
+            LogUtils.e("failed to close pooled socket", e);
+        }
+        try {
+            fd.close();
+        } catch (Exception e) {
+            LogUtils.e("failed to close pooled socket fd", e);
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package fq.router2.vpn;
+
+import android.net.VpnService;
+import android.os.ParcelFileDescriptor;
+import fq.router2.utils.LogUtils;
+
+import java.net.DatagramSocket;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+// unconnected sockets which are already protected, so handing one out is just a fd send.
+// refilled up to highWatermark once below lowWatermark, sockets above lowWatermark left unused for
+// MAX_IDLE_MILLIS are closed, the rest stay until the network changes and clear() drops them all
+public class ProtectedSocketPool {
+
+    private final static long MAX_IDLE_MILLIS = 60 * 1000;
+
+    private final VpnService vpnService;
+    private final FdTracker fdTracker;
+    private final int lowWatermark;
+    private final int highWatermark;
+    private final BlockingQueue<PooledSocket> tcpSockets;
+    private final BlockingQueue<PooledSocket> udpSockets;
+    private final AtomicLong tcpHits = new AtomicLong();
+    private final AtomicLong tcpMisses = new AtomicLong();
+    private final AtomicLong udpHits = new AtomicLong();
+    private final AtomicLong udpMisses = new AtomicLong();
+    private final Object refillSignal = new Object();
+    private volatile boolean running;
+
+    public ProtectedSocketPool(
+            VpnService vpnService, FdTracker fdTracker, int lowWatermark, int highWatermark) {
+        this.vpnService = vpnService;
+        this.fdTracker = fdTracker;
+        this.highWatermark = Math.max(1, highWatermark);
+        this.lowWatermark = Math.max(0, Math.min(this.highWatermark, lowWatermark));
+        this.tcpSockets = new ArrayBlockingQueue<PooledSocket>(this.highWatermark);
+        this.udpSockets = new ArrayBlockingQueue<PooledSocket>(this.highWatermark);
+    }
+
+    public void start() {
+        running = true;
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (running) {
+                    try {
+                        refill(tcpSockets, true);
+                        refill(udpSockets, false);
+                        synchronized (refillSignal) {
+                            refillSignal.wait(MAX_IDLE_MILLIS / 2);
+                        }
+                    } catch (Exception e) {
+                        LogUtils.e("failed to refill socket pool", e);
+                        try {
+                            Thread.sleep(1000);
+                        } catch (InterruptedException ie) {
+                            return;
+                        }
+                    }
+                }
+            }
+        }, "socket-pool").start();
+    }
+
+    public void stop() {
+        running = false;
+        synchronized (refillSignal) {
+            refillSignal.notifyAll();
+        }
+        clear();
+    }
+
+    // protected sockets are bound to the network they were created on
+    public void clear() {
+        drain(tcpSockets);
+        drain(udpSockets);
+        synchronized (refillSignal) {
+            refillSignal.notifyAll();
+        }
+    }
+
+    public PooledSocket takeTcp() throws Exception {
+        PooledSocket pooledSocket = take(tcpSockets);
+        if (null == pooledSocket) {
+            tcpMisses.incrementAndGet();
+            return createTcp();
+        }
+        tcpHits.incrementAndGet();
+        return pooledSocket;
+    }
+
+    // never creates one, for threads which must not block on protect. a miss is counted by the takeTcp that follows
+    public PooledSocket pollTcp() {
+        PooledSocket pooledSocket = take(tcpSockets);
+        if (null != pooledSocket) {
+            tcpHits.incrementAndGet();
+        }
+        return pooledSocket;
+    }
+
+    public PooledSocket takeUdp() throws Exception {
+        PooledSocket pooledSocket = take(udpSockets);
+        if (null == pooledSocket) {
+            udpMisses.incrementAndGet();
+            return createUdp();
+        }
+        udpHits.incrementAndGet();
+        return pooledSocket;
+    }
+
+    // not pooled, owned by the udp relay for the whole session
+    public DatagramChannel openUdpChannel() throws Exception {
+        DatagramChannel channel = DatagramChannel.open();
+        channel.configureBlocking(false);
+        if (!vpnService.protect(channel.socket())) {
+            channel.close();
+            throw new Exception("protect udp channel failed");
+        }
+        return channel;
+    }
+
+    public String getStats() {
+        return "socket_pool.tcp.size=" + tcpSockets.size() + "\n"
+                + "socket_pool.tcp.hits=" + tcpHits.get() + "\n"
+                + "socket_pool.tcp.misses=" + tcpMisses.get() + "\n"
+                + "socket_pool.udp.size=" + udpSockets.size() + "\n"
+                + "socket_pool.udp.hits=" + udpHits.get() + "\n"
+                + "socket_pool.udp.misses=" + udpMisses.get() + "\n";
+    }
+
+    private PooledSocket take(BlockingQueue<PooledSocket> sockets) {
+        PooledSocket pooledSocket = sockets.poll();
+        if (sockets.size() < lowWatermark) {
+            synchronized (refillSignal) {
+                refillSignal.notifyAll();
+            }
+        }
+        return pooledSocket;
+    }
+
+    private void refill(BlockingQueue<PooledSocket> sockets, boolean tcp) throws Exception {
+        expire(sockets);
+        if (sockets.size() >= lowWatermark && !sockets.isEmpty()) {
+            return;
+        }
+        while (running && sockets.size() < highWatermark) {
+            PooledSocket pooledSocket = tcp ? createTcp() : createUdp();
+            if (!sockets.offer(pooledSocket)) {
+                pooledSocket.close();
+                return;
+            }
+        }
+    }
+
+    // only the surplus above lowWatermark, so an idle device keeps its sockets instead of re-creating them
+    private void expire(BlockingQueue<PooledSocket> sockets) {
+        PooledSocket pooledSocket;
+        while (sockets.size() > lowWatermark && null != (pooledSocket = sockets.peek())
+                && System.currentTimeMillis() - pooledSocket.createdAt >= MAX_IDLE_MILLIS) {
+            if (sockets.remove(pooledSocket)) {
+                pooledSocket.close();
+            }
+        }
+    }
+
+    private void drain(BlockingQueue<PooledSocket> sockets) {
+        PooledSocket pooledSocket;
+        while (null != (pooledSocket = sockets.poll())) {
+            pooledSocket.close();
+        }
+    }
+
+    private PooledSocket createTcp() throws Exception {
+        SocketChannel channel = SocketChannel.open();
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        ParcelFileDescriptor fd = ParcelFileDescriptor.fromSocket(channel.socket());
+        PooledSocket pooledSocket = new PooledSocket(fdTracker, channel, fd);
+        if (!vpnService.protect(fd.getFd())) {
+            pooledSocket.close();
+            throw new Exception("protect tcp socket failed");
+        }
+        return pooledSocket;
+    }
+
+    private PooledSocket createUdp() throws Exception {
+        DatagramSocket sock = new DatagramSocket();
+        ParcelFileDescriptor fd = ParcelFileDescriptor.fromDatagramSocket(sock);
+        PooledSocket pooledSocket = new PooledSocket(fdTracker, sock, fd);
+        if (!vpnService.protect(fd.getFd())) {
+            pooledSocket.close();
+            throw new Exception("protect udp socket failed");
+        }
+        return pooledSocket;
+    }
+}
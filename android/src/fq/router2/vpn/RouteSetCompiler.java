@@ -0,0 +1,99 @@
+package fq.router2.vpn;
+
+import fq.router2.utils.LogUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+// routes covering 0.0.0.0/0 except the excluded cidrs, using as few prefixes as possible
+public class RouteSetCompiler {
+
+    public final static String[] DEFAULT_EXCLUDED_CIDRS = new String[]{
+            "0.0.0.0/8",
+            "10.0.0.0/8",
+            "128.0.0.0/6",
+            "132.0.0.0/6",
+            "136.0.0.0/7",
+            "138.0.0.0/8",
+            "172.16.0.0/12",
+            "192.168.0.0/16",
+            "255.0.0.0/8"
+    };
+
+    public static class Route {
+        public final int ip;
+        public final int prefixLength;
+
+        public Route(int ip, int prefixLength) {
+            this.ip = ip;
+            this.prefixLength = prefixLength;
+        }
+
+        public String getAddress() {
+            return IpPacketUtils.formatIp(ip);
+        }
+
+        @Override
+        public String toString() {
+            return getAddress() + "/" + prefixLength;
+        }
+    }
+
+    public static List<Route> compile(Collection<String> excludedCidrs) {
+        // start << 32 | end, top bit flipped so signed sort gives unsigned order
+        long[] ranges = new long[excludedCidrs.size()];
+        int count = 0;
+        for (String cidr : excludedCidrs) {
+            try {
+                ranges[count] = parseCidr(cidr) ^ Long.MIN_VALUE;
+                count++;
+            } catch (Exception e) {
+                LogUtils.e("skip invalid cidr: " + cidr);
+            }
+        }
+        Arrays.sort(ranges, 0, count);
+        List<Route> routes = new ArrayList<Route>();
+        long next = 0; // first address not yet excluded or routed
+        for (int i = 0; i < count; i++) {
+            long range = ranges[i] ^ Long.MIN_VALUE;
+            long start = range >>> 32;
+            long end = range & 0xffffffffL;
+            if (start > next) {
+                cover(routes, next, start - 1);
+            }
+            if (end + 1 > next) {
+                next = end + 1;
+            }
+        }
+        if (next <= 0xffffffffL) {
+            cover(routes, next, 0xffffffffL);
+        }
+        return routes;
+    }
+
+    private static long parseCidr(String cidr) {
+        cidr = cidr.trim();
+        int slashIndex = cidr.indexOf('/');
+        int prefixLength = slashIndex < 0 ? 32 : Integer.parseInt(cidr.substring(slashIndex + 1).trim());
+        if (prefixLength < 0 || prefixLength > 32) {
+            throw new IllegalArgumentException("invalid prefix length: " + cidr);
+        }
+        long ip = IpPacketUtils.parseIp(slashIndex < 0 ? cidr : cidr.substring(0, slashIndex).trim()) & 0xffffffffL;
+        long size = 1L << (32 - prefixLength);
+        long start = ip & ~(size - 1);
+        return (start << 32) | (start + size - 1);
+    }
+
+    private static void cover(List<Route> routes, long start, long end) {
+        while (start <= end) {
+            int hostBits = start == 0 ? 32 : Long.numberOfTrailingZeros(start);
+            while ((1L << hostBits) > end - start + 1) {
+                hostBits--;
+            }
+            routes.add(new Route((int) start, 32 - hostBits));
+            start += 1L << hostBits;
+        }
+    }
+}
@@ -0,0 +1,897 @@
+package fq.router2.vpn;
+
+import fq.router2.utils.LogUtils;
+import fq.router2.utils.TimerWheel;
+
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// tun2socks: terminates tcp from the tun in java and splices every flow onto an upstream socket,
+// so the python side only sees byte streams. upstream is one of
+//   gateway            - the fqsocks tcp gateway at 10.25.1.1:12345, original destination looked up by NAT
+//   direct             - a protected socket from the pool straight to the original destination
+//   socks5:host:port   - a local socks5 proxy, original destination sent by CONNECT
+// no window scaling, sack or timestamps are negotiated, out of order segments are dropped and go-back-n
+// retransmission is driven by the timer wheel. single threaded: the tun reader only queues packets.
+// flows live in an open addressing table on sport, dst ip, dport, and a periodic sweep resets flows
+// left idle, whose fin or rst never made it through.
+public class TcpStack {
+
+    public final static String UPSTREAM_GATEWAY = "gateway";
+    public final static String UPSTREAM_DIRECT = "direct";
+    public final static String UPSTREAM_SOCKS5_PREFIX = "socks5:";
+
+    private final static int FIN = 0x01;
+    private final static int SYN = 0x02;
+    private final static int RST = 0x04;
+    private final static int PSH = 0x08;
+    private final static int ACK = 0x10;
+
+    private final static int MAX_SEGMENT_SIZE = 1460;
+    private final static int DEFAULT_SEGMENT_SIZE = 536;
+    private final static int TO_UPSTREAM_BUFFER_SIZE = 16 * 1024;
+    private final static int TO_APP_BUFFER_SIZE = 32 * 1024;
+    private final static int CONNECT_TIMEOUT_MILLIS = 10000;
+    private final static int INITIAL_RTO_MILLIS = 1000;
+    private final static int MAX_RTO_MILLIS = 16000;
+    private final static int MAX_RETRANSMITS = 6;
+    private final static long IDLE_MILLIS = 30 * 60 * 1000L;
+    private final static long HALF_CLOSED_IDLE_MILLIS = 2 * 60 * 1000L;
+    private final static long SWEEP_INTERVAL_MILLIS = 60 * 1000L;
+
+    private final static int STATE_CONNECTING = 0;
+    private final static int STATE_SYN_RECEIVED = 1;
+    private final static int STATE_ESTABLISHED = 2;
+
+    private final static int PHASE_CONNECTING = 0;
+    private final static int PHASE_SOCKS_GREETING = 1;
+    private final static int PHASE_SOCKS_CONNECT = 2;
+    private final static int PHASE_READY = 3;
+
+    private final FileDescriptor tunFD;
+    private final ProtectedSocketPool socketPool;
+    private final FlowAccounting flowAccounting;
+    private final PacketCapture packetCapture;
+    private final InetSocketAddress upstreamAddress;
+    private final boolean socks5;
+    private final TunPacketQueue inbox;
+    // tun ip, sport, dst ip, dport => flow
+    private long[] keys = new long[64];
+    private TcpFlow[] flows = new TcpFlow[64];
+    private int mask = 63;
+    // local port of the connection to the gateway => dst ip << 16 | dport
+    private final AtomicLongArray gatewayNatMap = new AtomicLongArray(65536);
+    private final TimerWheel timerWheel = new TimerWheel(50, 512);
+    private final ByteBuffer outPacket = ByteBuffer.allocateDirect(60 + MAX_SEGMENT_SIZE);
+    private final Random random = new Random();
+    private final AtomicInteger flowCount = new AtomicInteger();
+    private final AtomicLong openedCount = new AtomicLong();
+    private final AtomicLong resetCount = new AtomicLong();
+    private final AtomicLong retransmitCount = new AtomicLong();
+    private final AtomicLong zeroWindowProbeCount = new AtomicLong();
+    private final AtomicLong segmentsInCount = new AtomicLong();
+    private final AtomicLong segmentsOutCount = new AtomicLong();
+    private FileChannel tunOutput;
+    private Selector selector;
+    private int ipId;
+    private long now;
+    private long lastSweepAt;
+    private volatile boolean running;
+
+    public TcpStack(
+            FileDescriptor tunFD, PacketBufferPool bufferPool, ProtectedSocketPool socketPool,
+            FlowAccounting flowAccounting, PacketCapture packetCapture, String upstream) throws Exception {
+        this.tunFD = tunFD;
+        this.inbox = new TunPacketQueue("tcp_stack", bufferPool, 1024);
+        this.socketPool = socketPool;
+        this.flowAccounting = flowAccounting;
+        this.packetCapture = packetCapture;
+        if (UPSTREAM_DIRECT.equals(upstream)) {
+            upstreamAddress = null;
+            socks5 = false;
+        } else if (null != upstream && upstream.startsWith(UPSTREAM_SOCKS5_PREFIX)) {
+            String hostAndPort = upstream.substring(UPSTREAM_SOCKS5_PREFIX.length());
+            int colon = hostAndPort.lastIndexOf(':');
+            upstreamAddress = new InetSocketAddress(
+                    InetAddress.getByName(hostAndPort.substring(0, colon)),
+                    Integer.parseInt(hostAndPort.substring(colon + 1)));
+            socks5 = true;
+        } else {
+            upstreamAddress = new InetSocketAddress(
+                    IpPacketUtils.formatIp(TunPacketEngine.TUN_IP), TunPacketEngine.GATEWAY_PORT);
+            socks5 = false;
+        }
+    }
+
+    public void start() throws IOException {
+        selector = Selector.open();
+        inbox.setSelector(selector);
+        tunOutput = new FileOutputStream(tunFD).getChannel();
+        running = true;
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    loop();
+                } catch (Exception e) {
+                    LogUtils.e("tcp stack failed", e);
+                } finally {
+                    closeAll();
+                }
+            }
+        }, "tcp-stack").start();
+    }
+
+    public void stop() {
+        running = false;
+        Selector selector = this.selector;
+        if (null != selector) {
+            selector.wakeup();
+        }
+    }
+
+    // called from the tun reader thread with a pooled packet, which is released once handled
+    public void receive(ByteBuffer packet) {
+        inbox.offer(packet);
+    }
+
+    // dst ip << 16 | dst port, 0 when unknown
+    public long getOriginalDestinationAddress(int localPort) {
+        return gatewayNatMap.get(localPort & 0xffff);
+    }
+
+    public String getOriginalDestination(int localPort) {
+        long originalDestination = getOriginalDestinationAddress(localPort);
+        if (0 == originalDestination) {
+            return null;
+        }
+        return IpPacketUtils.formatIp((int) (originalDestination >>> 16))
+                + "," + (originalDestination & 0xffff);
+    }
+
+    public String getStats() {
+        return "tcp_stack.flows=" + flowCount.get() + "\n"
+                + "tcp_stack.opened=" + openedCount.get() + "\n"
+                + "tcp_stack.resets=" + resetCount.get() + "\n"
+                + "tcp_stack.retransmits=" + retransmitCount.get() + "\n"
+                + "tcp_stack.zero_window_probes=" + zeroWindowProbeCount.get() + "\n"
+                + "tcp_stack.segments_in=" + segmentsInCount.get() + "\n"
+                + "tcp_stack.segments_out=" + segmentsOutCount.get() + "\n"
+                + inbox.getStats();
+    }
+
+    private void loop() throws IOException {
+        lastSweepAt = System.currentTimeMillis();
+        while (running) {
+            if (timerWheel.size() > 0) {
+                selector.select(timerWheel.getTickMillis());
+            } else if (flowCount.get() > 0) {
+                selector.select(SWEEP_INTERVAL_MILLIS);
+            } else {
+                selector.select();
+            }
+            now = System.currentTimeMillis();
+            inbox.beginDrain();
+            ByteBuffer packet;
+            while (null != (packet = inbox.poll())) {
+                segmentsInCount.incrementAndGet();
+                try {
+                    onAppSegment(packet, packet.limit());
+                } catch (Exception e) {
+                    LogUtils.e("failed to handle tcp segment", e);
+                } finally {
+                    inbox.release(packet);
+                }
+            }
+            Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+            while (iterator.hasNext()) {
+                SelectionKey key = iterator.next();
+                iterator.remove();
+                TcpFlow flow = (TcpFlow) key.attachment();
+                try {
+                    flow.onUpstreamReady(key);
+                } catch (Exception e) {
+                    flow.reset();
+                }
+            }
+            timerWheel.advance(now);
+            if (now - lastSweepAt >= SWEEP_INTERVAL_MILLIS) {
+                lastSweepAt = now;
+                sweepIdle();
+            }
+        }
+    }
+
+    private void sweepIdle() {
+        List<TcpFlow> idleFlows = new ArrayList<TcpFlow>();
+        for (TcpFlow flow : flows) {
+            if (null != flow && flow.isIdle()) {
+                idleFlows.add(flow);
+            }
+        }
+        for (TcpFlow flow : idleFlows) {
+            flow.reset();
+        }
+    }
+
+    private void closeAll() {
+        List<TcpFlow> openFlows = new ArrayList<TcpFlow>();
+        for (TcpFlow flow : flows) {
+            if (null != flow) {
+                openFlows.add(flow);
+            }
+        }
+        for (TcpFlow flow : openFlows) {
+            flow.destroy();
+        }
+        inbox.clear();
+        try {
+            selector.close();
+        } catch (Exception e) {
+            LogUtils.e("failed to close tcp stack selector", e);
+        }
+    }
+
+    private void onAppSegment(ByteBuffer packet, int length) throws Exception {
+        int ipHeaderLength = IpPacketUtils.getIpHeaderLength(packet);
+        int totalLength = Math.min(length, packet.getShort(2) & 0xffff);
+        if (totalLength < ipHeaderLength + 20 || !IpPacketUtils.isFirstFragment(packet)) {
+            return;
+        }
+        int dataOffset = (packet.get(ipHeaderLength + 12) & 0xf0) >> 2;
+        if (dataOffset < 20 || totalLength < ipHeaderLength + dataOffset) {
+            return;
+        }
+        int srcPort = packet.getShort(ipHeaderLength) & 0xffff;
+        if (0 == srcPort) {
+            return; // would pack into the empty key
+        }
+        int dstIp = packet.getInt(IpPacketUtils.IP_DST_OFFSET);
+        int dstPort = packet.getShort(ipHeaderLength + 2) & 0xffff;
+        int seq = packet.getInt(ipHeaderLength + 4);
+        int ack = packet.getInt(ipHeaderLength + 8);
+        int flags = packet.get(ipHeaderLength + 13) & 0x3f;
+        int window = packet.getShort(ipHeaderLength + 14) & 0xffff;
+        int payloadOffset = ipHeaderLength + dataOffset;
+        int payloadLength = totalLength - payloadOffset;
+        long key = ((long) srcPort << 48) | ((dstIp & 0xffffffffL) << 16) | dstPort;
+        TcpFlow flow = get(key);
+        if (null != flow) {
+            try {
+                flow.onSegment(packet, flags, seq, ack, window, payloadOffset, payloadLength);
+            } catch (Exception e) {
+                flow.reset();
+            }
+            return;
+        }
+        if (0 != (flags & RST)) {
+            return;
+        }
+        if (SYN == (flags & (SYN | ACK))) {
+            int mss = parseMss(packet, ipHeaderLength + 20, payloadOffset);
+            flow = new TcpFlow(key, srcPort, dstIp, dstPort, seq, window, mss);
+            put(key, flow);
+            openedCount.incrementAndGet();
+            flow.open();
+            return;
+        }
+        // segment of a flow we do not know, tell the app to give up
+        int segmentLength = payloadLength + ((flags & SYN) != 0 ? 1 : 0) + ((flags & FIN) != 0 ? 1 : 0);
+        if (0 != (flags & ACK)) {
+            sendSegment(dstIp, dstPort, srcPort, ack, 0, RST, 0, null, 0, 0, false);
+        } else {
+            sendSegment(dstIp, dstPort, srcPort, 0, seq + segmentLength, RST | ACK, 0, null, 0, 0, false);
+        }
+        resetCount.incrementAndGet();
+    }
+
+    private TcpFlow get(long key) {
+        for (int i = hash(key); ; i = (i + 1) & mask) {
+            if (key == keys[i]) {
+                return flows[i];
+            }
+            if (0 == keys[i]) {
+                return null;
+            }
+        }
+    }
+
+    private void put(long key, TcpFlow flow) {
+        if (flowCount.get() + 1 > keys.length * 3 / 4) {
+            grow();
+        }
+        for (int i = hash(key); ; i = (i + 1) & mask) {
+            if (0 == keys[i]) {
+                keys[i] = key;
+                flows[i] = flow;
+                flowCount.incrementAndGet();
+                return;
+            }
+        }
+    }
+
+    private void remove(long key) {
+        for (int i = hash(key); 0 != keys[i]; i = (i + 1) & mask) {
+            if (key == keys[i]) {
+                removeAt(i);
+                return;
+            }
+        }
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        TcpFlow[] oldFlows = flows;
+        keys = new long[oldKeys.length * 2];
+        flows = new TcpFlow[oldKeys.length * 2];
+        mask = keys.length - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (0 == oldKeys[i]) {
+                continue;
+            }
+            int slot = hash(oldKeys[i]);
+            while (0 != keys[slot]) {
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = oldKeys[i];
+            flows[slot] = oldFlows[i];
+        }
+    }
+
+    // flows to one server differ only in sport, which sits in the top bits
+    private int hash(long key) {
+        long h = (key ^ (key >>> 33)) * 0xff51afd7ed558ccdL;
+        h = (h ^ (h >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return (int) (h ^ (h >>> 33)) & mask;
+    }
+
+    // backward shift deletion, same as the udp relay
+    private void removeAt(int slot) {
+        keys[slot] = 0;
+        flows[slot] = null;
+        flowCount.decrementAndGet();
+        int hole = slot;
+        for (int i = (slot + 1) & mask; 0 != keys[i]; i = (i + 1) & mask) {
+            int home = hash(keys[i]);
+            boolean movable = hole <= i ? (home <= hole || home > i) : (home <= hole && home > i);
+            if (movable) {
+                keys[hole] = keys[i];
+                flows[hole] = flows[i];
+                keys[i] = 0;
+                flows[i] = null;
+                hole = i;
+            }
+        }
+    }
+
+    private static int parseMss(ByteBuffer packet, int offset, int end) {
+        while (offset < end) {
+            int kind = packet.get(offset) & 0xff;
+            if (0 == kind) {
+                break;
+            }
+            if (1 == kind) {
+                offset++;
+                continue;
+            }
+            if (offset + 1 >= end) {
+                break;
+            }
+            int optionLength = packet.get(offset + 1) & 0xff;
+            if (optionLength < 2) {
+                break;
+            }
+            if (2 == kind && 4 == optionLength && offset + 4 <= end) {
+                return Math.min(MAX_SEGMENT_SIZE, packet.getShort(offset + 2) & 0xffff);
+            }
+            offset += optionLength;
+        }
+        return DEFAULT_SEGMENT_SIZE;
+    }
+
+    private void sendSegment(
+            int srcIp, int srcPort, int dstPort, int seq, int ack, int flags, int window,
+            byte[] payload, int payloadOffset, int payloadLength, boolean mssOption) throws IOException {
+        int tcpHeaderLength = mssOption ? 24 : 20;
+        int totalLength = 20 + tcpHeaderLength + payloadLength;
+        ByteBuffer packet = outPacket;
+        packet.clear();
+        packet.put(0, (byte) 0x45);
+        packet.put(1, (byte) 0);
+        packet.putShort(2, (short) totalLength);
+        packet.putShort(4, (short) ipId++);
+        packet.putShort(6, (short) 0x4000); // don't fragment
+        packet.put(8, (byte) 64);
+        packet.put(9, (byte) IpPacketUtils.PROTOCOL_TCP);
+        packet.putInt(IpPacketUtils.IP_SRC_OFFSET, srcIp);
+        packet.putInt(IpPacketUtils.IP_DST_OFFSET, TunPacketEngine.TUN_IP);
+        packet.putShort(20, (short) srcPort);
+        packet.putShort(22, (short) dstPort);
+        packet.putInt(24, seq);
+        packet.putInt(28, ack);
+        packet.put(32, (byte) ((tcpHeaderLength / 4) << 4));
+        packet.put(33, (byte) flags);
+        packet.putShort(34, (short) window);
+        packet.putShort(38, (short) 0);
+        if (mssOption) {
+            packet.put(40, (byte) 2);
+            packet.put(41, (byte) 4);
+            packet.putShort(42, (short) MAX_SEGMENT_SIZE);
+        }
+        if (payloadLength > 0) {
+            packet.position(20 + tcpHeaderLength);
+            packet.put(payload, payloadOffset, payloadLength);
+        }
+        IpPacketUtils.fillChecksums(packet, 20, totalLength);
+        packet.position(0);
+        packet.limit(totalLength);
+        packetCapture.capture(packet, totalLength);
+        tunOutput.write(packet);
+        segmentsOutCount.incrementAndGet();
+        if (null != flowAccounting) {
+            flowAccounting.recordInbound(
+                    IpPacketUtils.PROTOCOL_TCP, FlowAccounting.toKey(dstPort, srcIp, srcPort), totalLength);
+        }
+    }
+
+    private class TcpFlow extends TimerWheel.Timeout {
+
+        private final long key;
+        private final int appPort;
+        private final int remoteIp;
+        private final int remotePort;
+        private final int mss;
+        private final int iss;
+        private final ByteBuffer toUpstream = ByteBuffer.allocate(TO_UPSTREAM_BUFFER_SIZE);
+        // bytes from sndUna onwards, the part before sndNxt is in flight
+        private final ByteBuffer toApp = ByteBuffer.allocate(TO_APP_BUFFER_SIZE);
+        private int state = STATE_CONNECTING;
+        private int phase = PHASE_CONNECTING;
+        private int rcvNxt;
+        private int sndUna;
+        private int sndNxt;
+        private int appWindow;
+        private int rto = INITIAL_RTO_MILLIS;
+        private int persistMillis = INITIAL_RTO_MILLIS;
+        private int retransmits;
+        private boolean zeroWindowAdvertised;
+        private boolean appFinReceived;
+        private boolean upstreamOutputShutdown;
+        private boolean upstreamEof;
+        private boolean finSent;
+        private boolean destroyed;
+        private PooledSocket pooledSocket;
+        private SocketChannel channel;
+        private SelectionKey selectionKey;
+        private int gatewayLocalPort = -1;
+        private ByteBuffer socksReply; // reply read so far, limited to what is known to belong to it
+        private long lastActiveAt = now;
+
+        private TcpFlow(long key, int appPort, int remoteIp, int remotePort, int appIsn, int appWindow, int mss) {
+            this.key = key;
+            this.appPort = appPort;
+            this.remoteIp = remoteIp;
+            this.remotePort = remotePort;
+            this.appWindow = appWindow;
+            this.mss = mss;
+            this.iss = random.nextInt();
+            this.rcvNxt = appIsn + 1;
+            this.sndUna = iss;
+            this.sndNxt = iss;
+        }
+
+        private void open() {
+            try {
+                InetSocketAddress remoteAddress = new InetSocketAddress(
+                        InetAddress.getByAddress(toBytes(remoteIp)), remotePort);
+                boolean connected;
+                if (null == upstreamAddress) {
+                    pooledSocket = socketPool.takeTcp();
+                    channel = pooledSocket.tcpChannel;
+                    connected = channel.connect(remoteAddress);
+                } else {
+                    channel = SocketChannel.open();
+                    channel.configureBlocking(false);
+                    channel.socket().setTcpNoDelay(true);
+                    connected = channel.connect(upstreamAddress);
+                }
+                selectionKey = channel.register(selector, SelectionKey.OP_CONNECT, this);
+                timerWheel.schedule(this, CONNECT_TIMEOUT_MILLIS);
+                // loopback connects to the gateway or a local proxy may complete right away
+                if (connected) {
+                    onChannelConnected();
+                }
+            } catch (Exception e) {
+                reset();
+            }
+        }
+
+        private void onUpstreamReady(SelectionKey key) throws IOException {
+            if (!key.isValid()) {
+                return;
+            }
+            if (key.isConnectable()) {
+                if (channel.finishConnect()) {
+                    onChannelConnected();
+                }
+                return;
+            }
+            if (key.isReadable()) {
+                if (PHASE_READY == phase) {
+                    readUpstream();
+                } else {
+                    readSocksReply();
+                }
+            }
+            if (!destroyed && key.isValid() && key.isWritable()) {
+                writeUpstream();
+            }
+        }
+
+        private void onChannelConnected() throws IOException {
+            if (socks5) {
+                toUpstream.put(new byte[]{5, 1, 0});
+                phase = PHASE_SOCKS_GREETING;
+                updateInterest();
+            } else {
+                onUpstreamConnected();
+            }
+        }
+
+        private void onUpstreamConnected() throws IOException {
+            phase = PHASE_READY;
+            if (null != upstreamAddress && !socks5) {
+                gatewayLocalPort = channel.socket().getLocalPort();
+                gatewayNatMap.set(gatewayLocalPort, ((remoteIp & 0xffffffffL) << 16) | remotePort);
+            }
+            state = STATE_SYN_RECEIVED;
+            sendSynAck();
+            updateInterest();
+        }
+
+        // replies may arrive in pieces. the connect reply is read up to the first byte of BND.ADDR,
+        // then up to the length its ATYP gives, so none of the relayed bytes after it are consumed
+        private void readSocksReply() throws IOException {
+            if (null == socksReply) {
+                socksReply = ByteBuffer.allocate(4 + 1 + 255 + 2);
+                socksReply.limit(2);
+            }
+            while (true) {
+                if (channel.read(socksReply) < 0) {
+                    throw new IOException("socks5 closed before its reply");
+                }
+                if (socksReply.hasRemaining()) {
+                    return;
+                }
+                if (5 != socksReply.get(0) || 0 != socksReply.get(1)) {
+                    throw new IOException("socks5 refused: " + socksReply.get(1));
+                }
+                if (PHASE_SOCKS_GREETING == phase) {
+                    socksReply.clear();
+                    socksReply.limit(5);
+                    toUpstream.put(new byte[]{5, 1, 0, 1});
+                    toUpstream.putInt(remoteIp);
+                    toUpstream.putShort((short) remotePort);
+                    phase = PHASE_SOCKS_CONNECT;
+                    updateInterest();
+                    return;
+                }
+                int replyLength = getSocksReplyLength(socksReply);
+                if (socksReply.position() < replyLength) {
+                    socksReply.limit(replyLength);
+                    continue;
+                }
+                socksReply = null;
+                onUpstreamConnected();
+                return;
+            }
+        }
+
+        private void onSegment(
+                ByteBuffer packet, int flags, int seq, int ack, int window,
+                int payloadOffset, int payloadLength) throws IOException {
+            lastActiveAt = now;
+            if (0 != (flags & RST)) {
+                destroy();
+                return;
+            }
+            if (STATE_CONNECTING == state) {
+                return; // syn retransmitted while upstream is still connecting
+            }
+            if (0 != (flags & SYN)) {
+                if (STATE_SYN_RECEIVED == state) {
+                    sendSynAck();
+                }
+                return;
+            }
+            if (0 == (flags & ACK)) {
+                return;
+            }
+            if (STATE_SYN_RECEIVED == state) {
+                if (ack != iss + 1) {
+                    return;
+                }
+                state = STATE_ESTABLISHED;
+                sndUna = ack;
+                cancel();
+                retransmits = 0;
+            } else if (ack - sndUna > 0 && ack - sndNxt <= 0) {
+                int acked = Math.min(ack - sndUna, toApp.position());
+                toApp.flip();
+                toApp.position(acked);
+                toApp.compact();
+                sndUna = ack;
+                retransmits = 0;
+                rto = INITIAL_RTO_MILLIS;
+                if (sndUna == sndNxt) {
+                    cancel();
+                } else {
+                    timerWheel.schedule(this, rto);
+                }
+                updateInterest();
+            }
+            if (destroyed) {
+                return;
+            }
+            appWindow = window;
+            if (window > 0) {
+                persistMillis = INITIAL_RTO_MILLIS;
+            }
+            if (payloadLength > 0 || 0 != (flags & FIN)) {
+                onAppData(packet, flags, seq, payloadOffset, payloadLength);
+            }
+            sendToApp();
+            finishIfDone();
+        }
+
+        // both directions closed, every byte acked by the app and flushed to upstream
+        private void finishIfDone() {
+            if (appFinReceived && finSent && sndUna == sndNxt && 0 == toUpstream.position()) {
+                destroy();
+            }
+        }
+
+        private void onAppData(
+                ByteBuffer packet, int flags, int seq, int payloadOffset, int payloadLength) throws IOException {
+            if (appFinReceived) {
+                sendAck();
+                return;
+            }
+            int accepted = 0;
+            if (seq == rcvNxt && payloadLength > 0) {
+                accepted = Math.min(payloadLength, toUpstream.remaining());
+                packet.limit(payloadOffset + accepted);
+                packet.position(payloadOffset);
+                toUpstream.put(packet);
+                rcvNxt += accepted;
+            }
+            if (0 != (flags & FIN) && seq + payloadLength == rcvNxt) {
+                appFinReceived = true;
+                rcvNxt += 1;
+            }
+            updateInterest();
+            // duplicate ack for anything out of order or beyond the window
+            sendAck();
+        }
+
+        private void readUpstream() throws IOException {
+            lastActiveAt = now;
+            int count = channel.read(toApp);
+            if (count < 0) {
+                upstreamEof = true;
+            }
+            updateInterest();
+            sendToApp();
+        }
+
+        private void writeUpstream() throws IOException {
+            lastActiveAt = now;
+            toUpstream.flip();
+            channel.write(toUpstream);
+            toUpstream.compact();
+            if (zeroWindowAdvertised && toUpstream.remaining() >= mss) {
+                sendAck(); // window update
+            }
+            updateInterest();
+            finishIfDone();
+        }
+
+        private void sendToApp() throws IOException {
+            if (STATE_ESTABLISHED != state || destroyed) {
+                return;
+            }
+            while (!finSent) {
+                int inFlight = sndNxt - sndUna;
+                int unsent = toApp.position() - inFlight;
+                int usableWindow = appWindow - inFlight;
+                if (unsent <= 0 || usableWindow <= 0) {
+                    break;
+                }
+                int length = Math.min(mss, Math.min(unsent, usableWindow));
+                sendSegment(remoteIp, remotePort, appPort, sndNxt, rcvNxt, ACK | PSH, getWindow(),
+                        toApp.array(), inFlight, length, false);
+                sndNxt += length;
+                if (!isScheduled()) {
+                    timerWheel.schedule(this, rto);
+                }
+            }
+            if (upstreamEof && !finSent && toApp.position() == sndNxt - sndUna) {
+                sendSegment(remoteIp, remotePort, appPort, sndNxt, rcvNxt, FIN | ACK, getWindow(),
+                        null, 0, 0, false);
+                sndNxt += 1;
+                finSent = true;
+                if (!isScheduled()) {
+                    timerWheel.schedule(this, rto);
+                }
+            }
+            // nothing in flight to time out, so a lost window update would stall the flow without this
+            int unsent = toApp.position() - (sndNxt - sndUna);
+            if (!finSent && unsent > 0 && appWindow <= sndNxt - sndUna && !isScheduled()) {
+                timerWheel.schedule(this, persistMillis);
+            }
+        }
+
+        // persist timer: one byte into the zero window, backing off but never giving up while the app answers
+        private void sendWindowProbe() throws IOException {
+            zeroWindowProbeCount.incrementAndGet();
+            sndNxt = sndUna;
+            finSent = false;
+            sendSegment(remoteIp, remotePort, appPort, sndNxt, rcvNxt, ACK | PSH, getWindow(),
+                    toApp.array(), 0, 1, false);
+            sndNxt += 1;
+            timerWheel.schedule(this, persistMillis);
+            persistMillis = Math.min(MAX_RTO_MILLIS, persistMillis * 2);
+        }
+
+        private void updateInterest() throws IOException {
+            if (destroyed) {
+                return;
+            }
+            if (appFinReceived && !upstreamOutputShutdown && 0 == toUpstream.position() && PHASE_READY == phase) {
+                upstreamOutputShutdown = true;
+                channel.socket().shutdownOutput();
+            }
+            int interest = 0;
+            if (PHASE_CONNECTING == phase) {
+                interest = SelectionKey.OP_CONNECT;
+            } else if (PHASE_READY != phase) {
+                interest = SelectionKey.OP_READ;
+            } else if (!upstreamEof && toApp.hasRemaining()) {
+                interest = SelectionKey.OP_READ;
+            }
+            if (toUpstream.position() > 0) {
+                interest |= SelectionKey.OP_WRITE;
+            }
+            if (selectionKey.interestOps() != interest) {
+                selectionKey.interestOps(interest);
+            }
+        }
+
+        private int getWindow() {
+            int window = Math.min(65535, toUpstream.remaining());
+            zeroWindowAdvertised = window < mss;
+            return window;
+        }
+
+        private void sendSynAck() throws IOException {
+            sendSegment(remoteIp, remotePort, appPort, iss, rcvNxt, SYN | ACK, getWindow(), null, 0, 0, true);
+            sndNxt = iss + 1;
+            timerWheel.schedule(this, rto);
+        }
+
+        private void sendAck() throws IOException {
+            sendSegment(remoteIp, remotePort, appPort, sndNxt, rcvNxt, ACK, getWindow(), null, 0, 0, false);
+        }
+
+        // flows still handshaking or retransmitting are left to their timers
+        private boolean isIdle() {
+            if (STATE_ESTABLISHED != state || isScheduled()) {
+                return false;
+            }
+            boolean halfClosed = appFinReceived || upstreamEof;
+            return now - lastActiveAt >= (halfClosed ? HALF_CLOSED_IDLE_MILLIS : IDLE_MILLIS);
+        }
+
+        @Override
+        protected void expire() {
+            try {
+                if (STATE_CONNECTING == state) {
+                    reset();
+                    return;
+                }
+                if (STATE_ESTABLISHED == state && 0 == appWindow && toApp.position() > 0) {
+                    sendWindowProbe();
+                    return;
+                }
+                if (++retransmits > MAX_RETRANSMITS) {
+                    reset();
+                    return;
+                }
+                retransmitCount.incrementAndGet();
+                rto = Math.min(MAX_RTO_MILLIS, rto * 2);
+                if (STATE_SYN_RECEIVED == state) {
+                    sendSynAck();
+                    return;
+                }
+                // go back n
+                sndNxt = sndUna;
+                finSent = false;
+                sendToApp();
+                if (!isScheduled() && sndUna != sndNxt) {
+                    timerWheel.schedule(this, rto);
+                }
+            } catch (Exception e) {
+                reset();
+            }
+        }
+
+        private void reset() {
+            if (destroyed) {
+                return;
+            }
+            try {
+                sendSegment(remoteIp, remotePort, appPort, sndNxt, rcvNxt, RST | ACK, 0, null, 0, 0, false);
+            } catch (Exception e) {
+                LogUtils.e("failed to send tcp reset", e);
+            }
+            resetCount.incrementAndGet();
+            destroy();
+        }
+
+        private void destroy() {
+            if (destroyed) {
+                return;
+            }
+            destroyed = true;
+            cancel();
+            remove(key);
+            if (gatewayLocalPort >= 0) {
+                gatewayNatMap.set(gatewayLocalPort, 0);
+            }
+            if (null != selectionKey) {
+                selectionKey.cancel();
+            }
+            if (null != pooledSocket) {
+                pooledSocket.close();
+            } else if (null != channel) {
+                try {
+                    channel.close();
+                } catch (Exception e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    // VER REP RSV ATYP BND.ADDR BND.PORT, needs the first 5 bytes
+    private static int getSocksReplyLength(ByteBuffer reply) throws IOException {
+        int addressType = reply.get(3);
+        if (1 == addressType) {
+            return 4 + 4 + 2;
+        } else if (3 == addressType) {
+            return 4 + 1 + (reply.get(4) & 0xff) + 2;
+        } else if (4 == addressType) {
+            return 4 + 16 + 2;
+        }
+        throw new IOException("socks5 address type unsupported: " + addressType);
+    }
+
+    private static byte[] toBytes(int ip) {
+        return new byte[]{(byte) (ip >>> 24), (byte) (ip >>> 16), (byte) (ip >>> 8), (byte) ip};
+    }
+}
@@ -0,0 +1,250 @@
+package fq.router2.vpn;
+
+import fq.router2.utils.LogUtils;
+
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// same nat as redirect_ip_packet in manager/vpn.py:
+// 10.25.1.1:sport => dst:dport is rewritten to 10.25.1.100:sport => 10.25.1.1:12345, and back
+// with a tcp stack, tcp is terminated in java instead, and with a udp relay non dns udp is relayed in java.
+// with a dns interceptor, cached dns answers are written straight back without going through python
+public class TunPacketEngine {
+
+    public final static int TUN_IP = 0x0A190101; // 10.25.1.1
+    public final static int FAKE_IP = 0x0A190164; // 10.25.1.100
+    public final static int GATEWAY_PORT = 12345;
+    public final static int MTU = 1500;
+
+    private final FileDescriptor tunFD;
+    private final PacketBufferPool bufferPool;
+    private final TcpStack tcpStack;
+    private final UdpRelay udpRelay;
+    private final FlowAccounting flowAccounting;
+    private final PacketCapture packetCapture;
+    private final DnsInterceptor dnsInterceptor;
+    // sport => dst ip << 16 | dport
+    private final AtomicLongArray natMap = new AtomicLongArray(65536);
+    private final AtomicLong redirectedCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final AtomicLong readCount = new AtomicLong();
+    private volatile boolean running;
+
+    public TunPacketEngine(
+            FileDescriptor tunFD, PacketBufferPool bufferPool, TcpStack tcpStack, UdpRelay udpRelay,
+            FlowAccounting flowAccounting, PacketCapture packetCapture, DnsInterceptor dnsInterceptor) {
+        this.tunFD = tunFD;
+        this.bufferPool = bufferPool;
+        this.tcpStack = tcpStack;
+        this.udpRelay = udpRelay;
+        this.flowAccounting = flowAccounting;
+        this.packetCapture = packetCapture;
+        this.dnsInterceptor = dnsInterceptor;
+    }
+
+    public void start() {
+        running = true;
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    loop();
+                } catch (Exception e) {
+                    if (running) {
+                        LogUtils.e("tun packet engine failed", e);
+                    }
+                }
+            }
+        }, "tun-packet-engine").start();
+    }
+
+    public void stop() {
+        running = false;
+    }
+
+    // dst ip << 16 | dst port, 0 when unknown
+    public long getOriginalDestinationAddress(int srcPort) {
+        return natMap.get(srcPort & 0xffff);
+    }
+
+    public String getOriginalDestination(int srcPort) {
+        long originalDestination = getOriginalDestinationAddress(srcPort);
+        if (0 == originalDestination) {
+            return null;
+        }
+        return IpPacketUtils.formatIp((int) (originalDestination >>> 16))
+                + "," + (originalDestination & 0xffff);
+    }
+
+    public String getStats() {
+        return "tun_packet_engine.reads=" + readCount.get() + "\n"
+                + "tun_packet_engine.redirected=" + redirectedCount.get() + "\n"
+                + "tun_packet_engine.dropped=" + droppedCount.get() + "\n"
+                + bufferPool.getStats();
+    }
+
+    private void loop() throws Exception {
+        FileChannel tunInput = new FileInputStream(tunFD).getChannel();
+        FileChannel tunOutput = new FileOutputStream(tunFD).getChannel();
+        // read into when the pool is exhausted, so the packet is dropped instead of stalling the tun
+        ByteBuffer overflow = ByteBuffer.allocateDirect(MTU);
+        while (running) {
+            ByteBuffer packet = bufferPool.acquire();
+            if (null == packet) {
+                overflow.clear();
+                tunInput.read(overflow);
+                droppedCount.incrementAndGet();
+                continue;
+            }
+            int length = tunInput.read(packet);
+            readCount.incrementAndGet();
+            if (length <= 0) {
+                bufferPool.release(packet);
+                continue;
+            }
+            packet.position(0);
+            packet.limit(length);
+            packetCapture.capture(packet, length);
+            if (null != flowAccounting) {
+                recordOutbound(packet, length);
+            }
+            if (null != dnsInterceptor && dnsInterceptor.answer(packet, length)) {
+                int answerLength = packet.limit();
+                packetCapture.capture(packet, answerLength);
+                tunOutput.write(packet);
+                if (null != flowAccounting) {
+                    recordInbound(packet, answerLength);
+                }
+                bufferPool.release(packet);
+                continue;
+            }
+            // handed over packets go back to the pool from the stack or relay thread
+            if (null != tcpStack && isFromApp(packet, length, IpPacketUtils.PROTOCOL_TCP)) {
+                tcpStack.receive(packet);
+                continue;
+            }
+            if (null != udpRelay && isFromApp(packet, length, IpPacketUtils.PROTOCOL_UDP)
+                    && UdpRelay.isRelayed(packet)) {
+                udpRelay.receive(packet);
+                continue;
+            }
+            if (redirect(packet, length)) {
+                packet.position(0);
+                packet.limit(length);
+                packetCapture.capture(packet, length);
+                if (null != dnsInterceptor) {
+                    dnsInterceptor.snoop(packet, length);
+                }
+                tunOutput.write(packet);
+                redirectedCount.incrementAndGet();
+            } else {
+                droppedCount.incrementAndGet();
+            }
+            bufferPool.release(packet);
+        }
+    }
+
+    private void recordOutbound(ByteBuffer packet, int length) {
+        if (length < 28 || (packet.get(0) & 0xf0) != 0x40 || !IpPacketUtils.isFirstFragment(packet)
+                || TUN_IP != packet.getInt(IpPacketUtils.IP_SRC_OFFSET)) {
+            return;
+        }
+        int protocol = IpPacketUtils.getProtocol(packet);
+        int dstIp = packet.getInt(IpPacketUtils.IP_DST_OFFSET);
+        if (FAKE_IP == dstIp || (IpPacketUtils.PROTOCOL_TCP != protocol && IpPacketUtils.PROTOCOL_UDP != protocol)) {
+            return;
+        }
+        int ipHeaderLength = IpPacketUtils.getIpHeaderLength(packet);
+        if (length < ipHeaderLength + 8) {
+            return;
+        }
+        long key = FlowAccounting.toKey(
+                packet.getShort(ipHeaderLength) & 0xffff, dstIp, packet.getShort(ipHeaderLength + 2) & 0xffff);
+        flowAccounting.recordOutbound(protocol, key, length, System.currentTimeMillis());
+    }
+
+    // a packet written back to the app, dst is the tun ip
+    private void recordInbound(ByteBuffer packet, int length) {
+        int ipHeaderLength = IpPacketUtils.getIpHeaderLength(packet);
+        long key = FlowAccounting.toKey(packet.getShort(ipHeaderLength + 2) & 0xffff,
+                packet.getInt(IpPacketUtils.IP_SRC_OFFSET), packet.getShort(ipHeaderLength) & 0xffff);
+        flowAccounting.recordInbound(IpPacketUtils.getProtocol(packet), key, length);
+    }
+
+    private static boolean isFromApp(ByteBuffer packet, int length, int protocol) {
+        return length >= 28 && (packet.get(0) & 0xf0) == 0x40
+                && protocol == IpPacketUtils.getProtocol(packet)
+                && TUN_IP == packet.getInt(IpPacketUtils.IP_SRC_OFFSET)
+                && FAKE_IP != packet.getInt(IpPacketUtils.IP_DST_OFFSET);
+    }
+
+    boolean redirect(ByteBuffer packet, int length) {
+        if (length < 20 || (packet.get(0) & 0xf0) != 0x40) {
+            return false;
+        }
+        int protocol = IpPacketUtils.getProtocol(packet);
+        if (IpPacketUtils.PROTOCOL_TCP != protocol && IpPacketUtils.PROTOCOL_UDP != protocol) {
+            return false;
+        }
+        int ipHeaderLength = IpPacketUtils.getIpHeaderLength(packet);
+        int l4HeaderLength = IpPacketUtils.PROTOCOL_TCP == protocol ? 20 : 8;
+        if (!IpPacketUtils.isFirstFragment(packet) || length < ipHeaderLength + l4HeaderLength) {
+            return false;
+        }
+        int srcIp = packet.getInt(IpPacketUtils.IP_SRC_OFFSET);
+        int dstIp = packet.getInt(IpPacketUtils.IP_DST_OFFSET);
+        if (TUN_IP != srcIp) {
+            return false;
+        }
+        int srcPort = packet.getShort(ipHeaderLength) & 0xffff;
+        int dstPort = packet.getShort(ipHeaderLength + 2) & 0xffff;
+        int newSrcIp;
+        int newSrcPort;
+        int newDstPort;
+        if (FAKE_IP == dstIp) {
+            long originalDestination = natMap.get(dstPort);
+            if (0 == originalDestination) {
+                return false;
+            }
+            newSrcIp = (int) (originalDestination >>> 16);
+            newSrcPort = (int) (originalDestination & 0xffff);
+            newDstPort = dstPort;
+            if (null != flowAccounting) {
+                flowAccounting.recordInbound(protocol, FlowAccounting.toKey(dstPort, newSrcIp, newSrcPort), length);
+            }
+        } else {
+            natMap.set(srcPort, ((dstIp & 0xffffffffL) << 16) | dstPort);
+            newSrcIp = FAKE_IP;
+            newSrcPort = srcPort;
+            newDstPort = GATEWAY_PORT;
+        }
+        int newDstIp = TUN_IP;
+        int ipChecksum = packet.getShort(IpPacketUtils.IP_CHECKSUM_OFFSET) & 0xffff;
+        ipChecksum = IpPacketUtils.updateChecksumForInt(ipChecksum, srcIp, newSrcIp);
+        ipChecksum = IpPacketUtils.updateChecksumForInt(ipChecksum, dstIp, newDstIp);
+        packet.putShort(IpPacketUtils.IP_CHECKSUM_OFFSET, (short) ipChecksum);
+        packet.putInt(IpPacketUtils.IP_SRC_OFFSET, newSrcIp);
+        packet.putInt(IpPacketUtils.IP_DST_OFFSET, newDstIp);
+        int l4ChecksumOffset = IpPacketUtils.getL4ChecksumOffset(protocol, ipHeaderLength);
+        int l4Checksum = packet.getShort(l4ChecksumOffset) & 0xffff;
+        // udp checksum of 0 means no checksum
+        if (IpPacketUtils.PROTOCOL_TCP == protocol || 0 != l4Checksum) {
+            l4Checksum = IpPacketUtils.updateChecksumForInt(l4Checksum, srcIp, newSrcIp);
+            l4Checksum = IpPacketUtils.updateChecksumForInt(l4Checksum, dstIp, newDstIp);
+            l4Checksum = IpPacketUtils.updateChecksum(l4Checksum, srcPort, newSrcPort);
+            l4Checksum = IpPacketUtils.updateChecksum(l4Checksum, dstPort, newDstPort);
+            if (IpPacketUtils.PROTOCOL_UDP == protocol && 0 == l4Checksum) {
+                l4Checksum = 0xffff;
+            }
+            packet.putShort(l4ChecksumOffset, (short) l4Checksum);
+        }
+        packet.putShort(ipHeaderLength, (short) newSrcPort);
+        packet.putShort(ipHeaderLength + 2, (short) newDstPort);
+        return true;
+    }
+}
@@ -0,0 +1,83 @@
+package fq.router2.vpn;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.Selector;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+// hands pooled packets from the tun reader to a selector thread, which drains all queued
+// packets per wakeup. the selector is only woken for the first packet of a batch.
+// the tun is still read one packet at a time, packets_per_drain only tells how much the consumer catches up at once
+public class TunPacketQueue {
+
+    private final String name;
+    private final PacketBufferPool bufferPool;
+    private final BlockingQueue<ByteBuffer> packets;
+    private final AtomicBoolean wakeupPending = new AtomicBoolean();
+    private final AtomicLong drainCount = new AtomicLong();
+    private final AtomicLong drainedCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private volatile Selector selector;
+
+    public TunPacketQueue(String name, PacketBufferPool bufferPool, int capacity) {
+        this.name = name;
+        this.bufferPool = bufferPool;
+        this.packets = new ArrayBlockingQueue<ByteBuffer>(Math.max(1, capacity));
+    }
+
+    public void setSelector(Selector selector) {
+        this.selector = selector;
+    }
+
+    // tun reader thread, the packet belongs to the queue afterwards even if it is dropped
+    public void offer(ByteBuffer packet) {
+        if (!packets.offer(packet)) {
+            droppedCount.incrementAndGet();
+            bufferPool.release(packet);
+            return;
+        }
+        if (wakeupPending.compareAndSet(false, true)) {
+            Selector selector = this.selector;
+            if (null != selector) {
+                selector.wakeup();
+            }
+        }
+    }
+
+    // selector thread, before polling so packets queued meanwhile wake it up again
+    public void beginDrain() {
+        wakeupPending.set(false);
+        if (!packets.isEmpty()) {
+            drainCount.incrementAndGet();
+        }
+    }
+
+    public ByteBuffer poll() {
+        ByteBuffer packet = packets.poll();
+        if (null != packet) {
+            drainedCount.incrementAndGet();
+        }
+        return packet;
+    }
+
+    public void release(ByteBuffer packet) {
+        bufferPool.release(packet);
+    }
+
+    public void clear() {
+        ByteBuffer packet;
+        while (null != (packet = packets.poll())) {
+            bufferPool.release(packet);
+        }
+    }
+
+    public String getStats() {
+        long drains = drainCount.get();
+        long drained = drainedCount.get();
+        return name + ".packets_per_drain=" + (0 == drains ? 0 : drained * 10 / drains / 10.0) + "\n"
+                + name + ".queue_depth=" + packets.size() + "\n"
+                + name + ".queue_dropped=" + droppedCount.get() + "\n";
+    }
+}
@@ -0,0 +1,404 @@
+package fq.router2.vpn;
+
+import fq.router2.utils.LogUtils;
+import fq.router2.utils.TimerWheel;
+
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// relays udp from the tun over protected datagram channels, one connected channel per
+// sport, dst ip, dport (src ip is always the tun ip). sessions live in an open addressing table
+// on the packed key, all channels share one selector and idle ones are closed by the timer wheel.
+// dns is left to the python side, which knows how to get around polluted answers.
+public class UdpRelay {
+
+    private final static int DNS_PORT = 53;
+    private final static int MAX_PAYLOAD_SIZE = 65507;
+
+    private final FileDescriptor tunFD;
+    private final ProtectedSocketPool socketPool;
+    private final FlowAccounting flowAccounting;
+    private final PacketCapture packetCapture;
+    private final int maxSessions;
+    private final long idleMillis;
+    private final TunPacketQueue inbox;
+    private final TimerWheel timerWheel = new TimerWheel(200, 512);
+    private final long[] keys;
+    private final Session[] sessions;
+    private final int mask;
+    private final ByteBuffer inPacket = ByteBuffer.allocateDirect(28 + MAX_PAYLOAD_SIZE);
+    private final AtomicInteger sessionCount = new AtomicInteger();
+    private final AtomicLong openedCount = new AtomicLong();
+    private final AtomicLong evictedCount = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+    private final AtomicLong packetsOutCount = new AtomicLong();
+    private final AtomicLong packetsInCount = new AtomicLong();
+    private final AtomicLong fragmentedCount = new AtomicLong();
+    private FileChannel tunOutput;
+    private Selector selector;
+    private int ipId;
+    private volatile boolean running;
+
+    public UdpRelay(
+            FileDescriptor tunFD, PacketBufferPool bufferPool, ProtectedSocketPool socketPool,
+            FlowAccounting flowAccounting, PacketCapture packetCapture, int maxSessions, long idleMillis) {
+        this.tunFD = tunFD;
+        this.inbox = new TunPacketQueue("udp_relay", bufferPool, 1024);
+        this.socketPool = socketPool;
+        this.flowAccounting = flowAccounting;
+        this.packetCapture = packetCapture;
+        this.maxSessions = Math.max(1, maxSessions);
+        this.idleMillis = idleMillis;
+        int powerOfTwo = 16;
+        while (powerOfTwo < this.maxSessions * 4 / 3 + 1) {
+            powerOfTwo <<= 1;
+        }
+        this.keys = new long[powerOfTwo];
+        this.sessions = new Session[powerOfTwo];
+        this.mask = powerOfTwo - 1;
+    }
+
+    public static boolean isRelayed(ByteBuffer packet) {
+        int ipHeaderLength = IpPacketUtils.getIpHeaderLength(packet);
+        return DNS_PORT != (packet.getShort(ipHeaderLength + 2) & 0xffff);
+    }
+
+    public void start() throws IOException {
+        selector = Selector.open();
+        inbox.setSelector(selector);
+        tunOutput = new FileOutputStream(tunFD).getChannel();
+        running = true;
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    loop();
+                } catch (Exception e) {
+                    LogUtils.e("udp relay failed", e);
+                } finally {
+                    closeAll();
+                }
+            }
+        }, "udp-relay").start();
+    }
+
+    public void stop() {
+        running = false;
+        Selector selector = this.selector;
+        if (null != selector) {
+            selector.wakeup();
+        }
+    }
+
+    // called from the tun reader thread with a pooled packet, which is released once handled
+    public void receive(ByteBuffer packet) {
+        inbox.offer(packet);
+    }
+
+    public String getStats() {
+        return "udp_relay.sessions=" + sessionCount.get() + "\n"
+                + "udp_relay.opened=" + openedCount.get() + "\n"
+                + "udp_relay.evicted=" + evictedCount.get() + "\n"
+                + "udp_relay.rejected=" + rejectedCount.get() + "\n"
+                + "udp_relay.packets_out=" + packetsOutCount.get() + "\n"
+                + "udp_relay.packets_in=" + packetsInCount.get() + "\n"
+                + "udp_relay.fragmented=" + fragmentedCount.get() + "\n"
+                + inbox.getStats();
+    }
+
+    private void loop() throws IOException {
+        while (running) {
+            if (timerWheel.size() > 0) {
+                selector.select(timerWheel.getTickMillis());
+            } else {
+                selector.select();
+            }
+            inbox.beginDrain();
+            ByteBuffer packet;
+            while (null != (packet = inbox.poll())) {
+                try {
+                    relayOut(packet);
+                } finally {
+                    inbox.release(packet);
+                }
+            }
+            Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+            while (iterator.hasNext()) {
+                SelectionKey key = iterator.next();
+                iterator.remove();
+                relayIn((Session) key.attachment());
+            }
+            timerWheel.advance(System.currentTimeMillis());
+        }
+    }
+
+    private void closeAll() {
+        for (int i = 0; i < sessions.length; i++) {
+            if (null != sessions[i]) {
+                sessions[i].close();
+                sessions[i] = null;
+                keys[i] = 0;
+            }
+        }
+        sessionCount.set(0);
+        inbox.clear();
+        try {
+            selector.close();
+        } catch (Exception e) {
+            LogUtils.e("failed to close udp relay selector", e);
+        }
+    }
+
+    private void relayOut(ByteBuffer buffer) {
+        int length = buffer.limit();
+        int ipHeaderLength = IpPacketUtils.getIpHeaderLength(buffer);
+        if (!IpPacketUtils.isFirstFragment(buffer) || length < ipHeaderLength + 8) {
+            return;
+        }
+        int udpLength = buffer.getShort(ipHeaderLength + 4) & 0xffff;
+        if (udpLength < 8 || ipHeaderLength + udpLength > length) {
+            return;
+        }
+        int srcPort = buffer.getShort(ipHeaderLength) & 0xffff;
+        int dstIp = buffer.getInt(IpPacketUtils.IP_DST_OFFSET);
+        int dstPort = buffer.getShort(ipHeaderLength + 2) & 0xffff;
+        long key = ((long) srcPort << 48) | ((dstIp & 0xffffffffL) << 16) | dstPort;
+        if (0 == key) {
+            return;
+        }
+        Session session = get(key);
+        if (null == session) {
+            session = open(key, srcPort, dstIp, dstPort);
+            if (null == session) {
+                return;
+            }
+        }
+        buffer.limit(ipHeaderLength + udpLength);
+        buffer.position(ipHeaderLength + 8);
+        try {
+            session.channel.write(buffer);
+            session.lastActiveAt = System.currentTimeMillis();
+            packetsOutCount.incrementAndGet();
+        } catch (Exception e) {
+            // icmp unreachable shows up as an error on connected channels
+            remove(key);
+        }
+    }
+
+    private void relayIn(Session session) {
+        ByteBuffer packet = inPacket;
+        int payloadLength;
+        try {
+            packet.clear();
+            packet.position(28);
+            payloadLength = session.channel.read(packet);
+        } catch (Exception e) {
+            remove(session.key);
+            return;
+        }
+        if (payloadLength <= 0) {
+            return;
+        }
+        session.lastActiveAt = System.currentTimeMillis();
+        int totalLength = 28 + payloadLength;
+        packet.put(0, (byte) 0x45);
+        packet.put(1, (byte) 0);
+        packet.putShort(2, (short) totalLength);
+        packet.putShort(4, (short) ipId++);
+        packet.putShort(6, (short) 0);
+        packet.put(8, (byte) 64);
+        packet.put(9, (byte) IpPacketUtils.PROTOCOL_UDP);
+        packet.putInt(IpPacketUtils.IP_SRC_OFFSET, (int) (session.key >>> 16));
+        packet.putInt(IpPacketUtils.IP_DST_OFFSET, TunPacketEngine.TUN_IP);
+        packet.putShort(20, (short) session.key);
+        packet.putShort(22, (short) (session.key >>> 48));
+        packet.putShort(24, (short) (8 + payloadLength));
+        IpPacketUtils.fillChecksums(packet, 20, totalLength);
+        try {
+            if (totalLength > TunPacketEngine.MTU) {
+                writeFragments(packet, totalLength);
+            } else {
+                packet.position(0);
+                packet.limit(totalLength);
+                packetCapture.capture(packet, totalLength);
+                tunOutput.write(packet);
+            }
+            packetsInCount.incrementAndGet();
+            if (null != flowAccounting) {
+                // session keys are packed the same way as flow keys
+                flowAccounting.recordInbound(IpPacketUtils.PROTOCOL_UDP, session.key, totalLength);
+            }
+        } catch (Exception e) {
+            LogUtils.e("failed to write udp reply to tun", e);
+        }
+    }
+
+    // the tun would drop anything over its mtu, so the datagram goes as ip fragments the kernel reassembles.
+    // the udp checksum already covers the whole datagram. fragments are written in order and each header
+    // goes over the tail of the previous fragment, which is sent by then
+    private void writeFragments(ByteBuffer packet, int totalLength) throws IOException {
+        fragmentedCount.incrementAndGet();
+        int fragmentPayloadLength = (TunPacketEngine.MTU - 20) & ~7;
+        int l4Length = totalLength - 20;
+        short id = packet.getShort(4);
+        int srcIp = packet.getInt(IpPacketUtils.IP_SRC_OFFSET);
+        for (int offset = 0; offset < l4Length; offset += fragmentPayloadLength) {
+            int length = Math.min(fragmentPayloadLength, l4Length - offset);
+            boolean moreFragments = offset + length < l4Length;
+            packet.clear();
+            packet.put(offset, (byte) 0x45);
+            packet.put(offset + 1, (byte) 0);
+            packet.putShort(offset + 2, (short) (20 + length));
+            packet.putShort(offset + 4, id);
+            packet.putShort(offset + 6, (short) ((moreFragments ? 0x2000 : 0) | (offset >>> 3)));
+            packet.put(offset + 8, (byte) 64);
+            packet.put(offset + 9, (byte) IpPacketUtils.PROTOCOL_UDP);
+            packet.putShort(offset + IpPacketUtils.IP_CHECKSUM_OFFSET, (short) 0);
+            packet.putInt(offset + IpPacketUtils.IP_SRC_OFFSET, srcIp);
+            packet.putInt(offset + IpPacketUtils.IP_DST_OFFSET, TunPacketEngine.TUN_IP);
+            packet.putShort(offset + IpPacketUtils.IP_CHECKSUM_OFFSET,
+                    (short) ~IpPacketUtils.sum(packet, offset, 20, 0));
+            packet.position(offset);
+            packet.limit(offset + 20 + length);
+            packetCapture.capture(packet.slice(), 20 + length);
+            tunOutput.write(packet);
+        }
+    }
+
+    private Session open(long key, int srcPort, int dstIp, int dstPort) {
+        if (sessionCount.get() >= maxSessions) {
+            rejectedCount.incrementAndGet();
+            return null;
+        }
+        Session session = new Session(key);
+        try {
+            session.channel = socketPool.openUdpChannel();
+            byte[] ip = {(byte) (dstIp >>> 24), (byte) (dstIp >>> 16), (byte) (dstIp >>> 8), (byte) dstIp};
+            session.channel.connect(new InetSocketAddress(InetAddress.getByAddress(ip), dstPort));
+            session.selectionKey = session.channel.register(selector, SelectionKey.OP_READ, session);
+        } catch (Exception e) {
+            LogUtils.e("failed to open udp relay session for " + srcPort, e);
+            session.close();
+            rejectedCount.incrementAndGet();
+            return null;
+        }
+        session.lastActiveAt = System.currentTimeMillis();
+        timerWheel.schedule(session, idleMillis);
+        put(key, session);
+        openedCount.incrementAndGet();
+        return session;
+    }
+
+    private Session get(long key) {
+        int slot = find(key);
+        return slot < 0 ? null : sessions[slot];
+    }
+
+    private void put(long key, Session session) {
+        for (int i = hash(key); ; i = (i + 1) & mask) {
+            if (0 == keys[i]) {
+                keys[i] = key;
+                sessions[i] = session;
+                sessionCount.incrementAndGet();
+                return;
+            }
+        }
+    }
+
+    private void remove(long key) {
+        int slot = find(key);
+        if (slot < 0) {
+            return;
+        }
+        Session session = sessions[slot];
+        session.cancel();
+        session.close();
+        removeAt(slot);
+    }
+
+    private int find(long key) {
+        for (int i = hash(key); ; i = (i + 1) & mask) {
+            if (key == keys[i]) {
+                return i;
+            }
+            if (0 == keys[i]) {
+                return -1;
+            }
+        }
+    }
+
+    // sessions to one server differ only in sport, which sits in the top bits
+    private int hash(long key) {
+        long h = (key ^ (key >>> 33)) * 0xff51afd7ed558ccdL;
+        h = (h ^ (h >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return (int) (h ^ (h >>> 33)) & mask;
+    }
+
+    // backward shift deletion, same as the negative connect cache
+    private void removeAt(int slot) {
+        keys[slot] = 0;
+        sessions[slot] = null;
+        sessionCount.decrementAndGet();
+        int hole = slot;
+        for (int i = (slot + 1) & mask; 0 != keys[i]; i = (i + 1) & mask) {
+            int home = hash(keys[i]);
+            boolean movable = hole <= i ? (home <= hole || home > i) : (home <= hole && home > i);
+            if (movable) {
+                keys[hole] = keys[i];
+                sessions[hole] = sessions[i];
+                keys[i] = 0;
+                sessions[i] = null;
+                hole = i;
+            }
+        }
+    }
+
+    // the only per session object: channel, its key and the idle timeout
+    private class Session extends TimerWheel.Timeout {
+
+        private final long key;
+        private DatagramChannel channel;
+        private SelectionKey selectionKey;
+        private long lastActiveAt;
+
+        private Session(long key) {
+            this.key = key;
+        }
+
+        @Override
+        protected void expire() {
+            // re-armed lazily, so traffic never touches the wheel
+            long idle = System.currentTimeMillis() - lastActiveAt;
+            if (idle < idleMillis) {
+                timerWheel.schedule(this, idleMillis - idle);
+                return;
+            }
+            evictedCount.incrementAndGet();
+            remove(key);
+        }
+
+        private void close() {
+            if (null != selectionKey) {
+                selectionKey.cancel();
+            }
+            if (null != channel) {
+                try {
+                    channel.close();
+                } catch (Exception e) {
+                    // ignore
+                }
+            }
+        }
+    }
+}
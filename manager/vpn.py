@@ -8,6 +8,7 @@ import sys
 import os
 import _multiprocessing
 import socket
+import struct
 import httplib
 import fqdns
 import fqsocks.fqsocks
@@ -17,6 +18,7 @@ import fqsocks.networking
 import contextlib
 import gevent
 import gevent.socket
+import gevent.event
 import dpkt
 import config
 import traceback
@@ -30,6 +32,7 @@ MANAGER_LOG_FILE = os.path.join(LOG_DIR, 'manager.log')
 FQDNS_LOG_FILE = os.path.join(LOG_DIR, 'fqdns.log')
 
 nat_map = {} # sport => (dst, dport), src always be 10.25.1.1
+java_packet_engine_on = False # nat done by SocksVpnService, nat_map is not used
 default_dns_server = config.get_default_dns_server()
 DNS_HANDLER = fqdns.DnsHandler(
     enable_china_domain=True, enable_hosted_domain=True,
@@ -106,45 +109,181 @@ def redirect_ip_packet(tun_fd):
 
 
 def get_original_destination(sock, src_ip, src_port):
+    if java_packet_engine_on and src_ip == '10.25.1.1': # connection made by the java tcp stack
+        return query_original_destination(src_ip, src_port, 'NAT,%s,%s' % (src_port, src_ip))
     if src_ip != '10.25.1.100': # fake connection from 10.25.1.100
         raise Exception('unexpected src ip: %s' % src_ip)
+    if java_packet_engine_on:
+        return query_original_destination(src_ip, src_port, 'NAT,%s' % src_port)
     return nat_map.get(src_port)
 
 
+def query_original_destination(src_ip, src_port, request):
+    try:
+        return FDSOCK_MUX.request(OPCODE_NAT, src_ip, src_port, 0, 3)
+    except gevent.Timeout:
+        return None
+    except:
+        LOGGER.exception('fdsock mux unavailable, fallback to one shot')
+    original_destination = fdsock_query(request)
+    if not original_destination:
+        return None
+    dst, dport = original_destination.split(',')
+    return dst, int(dport)
+
+
 fqsocks.networking.SPI['get_original_destination'] = get_original_destination
 
 
-def create_tcp_socket(server_ip, server_port, connect_timeout):
+BINARY_MAGIC = '\xfb'
+OPCODE_OPEN_TCP = 1
+OPCODE_OPEN_UDP = 2
+OPCODE_NAT = 3
+STATUS_FD = 0
+STATUS_ADDRESS = 3
+
+
+class FdsockMux(object):
+    # one long-lived fdsock connection in binary framing, see BinaryFdReply.java.
+    # replies come back as status byte + request id, a fd for STATUS_FD,
+    # (ip, port) for STATUS_ADDRESS and None for anything else
+    def __init__(self):
+        self.sock = None
+        self.pending = None # request id => result, for the requests sent on self.sock
+        self.connecting = None # event set once the greenlet opening the connection is done
+        self.last_request_id = 0
+
+    def request(self, opcode, ip, port, connect_timeout, timeout):
+        sock, pending = self.get_connection()
+        self.last_request_id = (self.last_request_id + 1) & 0xffffffff
+        request_id = self.last_request_id
+        result = gevent.event.AsyncResult()
+        pending[request_id] = result
+        try:
+            sock.sendall(struct.pack('>BI4sHI', opcode, request_id, socket.inet_aton(ip), port, connect_timeout))
+            return result.get(timeout=timeout)
+        finally:
+            pending.pop(request_id, None)
+
+    def get_connection(self):
+        connecting = self.connecting
+        if connecting: # another greenlet is opening the connection, share its outcome
+            connecting.wait()
+        elif not self.sock:
+            self.connecting = gevent.event.Event()
+            try:
+                self.connect()
+            finally:
+                self.connecting.set()
+                self.connecting = None
+        if not self.sock:
+            raise socket.error('fdsock mux unavailable')
+        return self.sock, self.pending
+
+    def connect(self):
+        sock = socket.socket(socket.AF_UNIX, socket.SOCK_STREAM)
+        try:
+            sock.connect('\0fdsock2')
+            sock.sendall(BINARY_MAGIC)
+        except:
+            sock.close()
+            raise
+        pending = {}
+        self.sock = sock
+        self.pending = pending
+        gevent.spawn(self.read_replies, sock, pending)
+
+    def read_replies(self, sock, pending):
+        try:
+            while True:
+                gevent.socket.wait_read(sock.fileno())
+                status = sock.recv(1, socket.MSG_PEEK)
+                if not status:
+                    raise Exception('fdsock mux closed')
+                status = ord(status)
+                if STATUS_FD == status:
+                    fd = _multiprocessing.recvfd(sock.fileno())
+                else:
+                    sock.recv(1)
+                    fd = None
+                request_id, = struct.unpack('>I', self.read_exactly(sock, 4))
+                value = fd
+                if STATUS_ADDRESS == status:
+                    ip, port = struct.unpack('>4sH', self.read_exactly(sock, 6))
+                    value = (socket.inet_ntoa(ip), port)
+                result = pending.get(request_id)
+                if result:
+                    result.set(value)
+                elif fd is not None:
+                    os.close(fd)
+        except:
+            LOGGER.exception('fdsock mux failed')
+        finally:
+            if self.sock is sock:
+                self.sock = None
+                self.pending = None
+            sock.close()
+            for result in pending.values():
+                if not result.ready():
+                    result.set_exception(socket.error('fdsock mux closed'))
+
+    def read_exactly(self, sock, length):
+        # never read into the next reply, which may carry a fd
+        data = ''
+        while len(data) < length:
+            chunk = sock.recv(length - len(data))
+            if not chunk:
+                raise Exception('fdsock mux closed')
+            data += chunk
+        return data
+
+
+FDSOCK_MUX = FdsockMux()
+
+
+def open_fd(request, timeout, opcode, ip='0.0.0.0', port=0, connect_timeout=0):
+    try:
+        return FDSOCK_MUX.request(opcode, ip, port, connect_timeout, timeout)
+    except gevent.Timeout:
+        return None
+    except:
+        LOGGER.exception('fdsock mux unavailable, fallback to one shot')
     fdsock = socket.socket(socket.AF_UNIX, socket.SOCK_STREAM)
     with contextlib.closing(fdsock):
         fdsock.connect('\0fdsock2')
-        fdsock.sendall('OPEN TCP,%s,%s,%s\n' % (server_ip, server_port, connect_timeout * 1000))
+        fdsock.sendall('%s\n' % request)
         gevent.socket.wait_read(fdsock.fileno())
+        if not fdsock.recv(1, socket.MSG_PEEK): # closed without reply, the request was rejected
+            return None
         fd = _multiprocessing.recvfd(fdsock.fileno())
         if fd == 1:
-            LOGGER.error('failed to create tcp socket: %s:%s' % (server_ip, server_port))
-            raise socket.error('failed to create tcp socket: %s:%s' % (server_ip, server_port))
-        sock = socket.fromfd(fd, socket.AF_INET, socket.SOCK_STREAM)
-        os.close(fd)
-        return sock
+            return None
+        return fd
+
+
+def create_tcp_socket(server_ip, server_port, connect_timeout):
+    connect_timeout_millis = int(connect_timeout * 1000)
+    fd = open_fd('OPEN TCP,%s,%s,%s' % (server_ip, server_port, connect_timeout_millis), connect_timeout + 3,
+                 OPCODE_OPEN_TCP, server_ip, server_port, connect_timeout_millis)
+    if fd is None:
+        LOGGER.error('failed to create tcp socket: %s:%s' % (server_ip, server_port))
+        raise socket.error('failed to create tcp socket: %s:%s' % (server_ip, server_port))
+    sock = socket.fromfd(fd, socket.AF_INET, socket.SOCK_STREAM)
+    os.close(fd)
+    return sock
 
 
 fqsocks.networking.SPI['create_tcp_socket'] = create_tcp_socket
 
 
 def create_udp_socket():
-    fdsock = socket.socket(socket.AF_UNIX, socket.SOCK_STREAM)
-    with contextlib.closing(fdsock):
-        fdsock.connect('\0fdsock2')
-        fdsock.sendall('OPEN UDP\n')
-        gevent.socket.wait_read(fdsock.fileno())
-        fd = _multiprocessing.recvfd(fdsock.fileno())
-        if fd == 1:
-            LOGGER.error('failed to create udp socket')
-            raise socket.error('failed to create udp socket')
-        sock = socket.fromfd(fd, socket.AF_INET, socket.SOCK_DGRAM)
-        os.close(fd)
-        return sock
+    fd = open_fd('OPEN UDP', 3, OPCODE_OPEN_UDP)
+    if fd is None:
+        LOGGER.error('failed to create udp socket')
+        raise socket.error('failed to create udp socket')
+    sock = socket.fromfd(fd, socket.AF_INET, socket.SOCK_DGRAM)
+    os.close(fd)
+    return sock
 
 
 fqdns.SPI['create_udp_socket'] = create_udp_socket
@@ -168,6 +307,19 @@ def exit_later():
     os._exit(1)
 
 
+def fdsock_query(request):
+    fdsock = socket.socket(socket.AF_UNIX, socket.SOCK_STREAM)
+    with contextlib.closing(fdsock):
+        fdsock.connect('\0fdsock2')
+        fdsock.sendall('%s\n' % request)
+        response = []
+        while True:
+            data = fdsock.recv(8192)
+            if not data:
+                return ''.join(response)
+            response.append(data)
+
+
 def read_tun_fd_until_ready():
     LOGGER.info('connecting to fdsock')
     while True:
@@ -203,7 +355,7 @@ class VpnUdpHandler(object):
         try:
             src_ip, src_port = address
             dst_ip, dst_port = get_original_destination(None, src_ip, src_port)
-            if 53 ==  get_original_destination(None, src_ip, src_port)[1]:
+            if 53 == dst_port:
                 self.dns_handler(sendto, request, address)
             else:
                 sock = fqdns.create_udp_socket()
@@ -254,6 +406,14 @@ if '__main__' == __name__:
     except:
         LOGGER.exception('failed to get tun fd')
         sys.exit(1)
-    greenlet = gevent.spawn(redirect_tun_traffic, tun_fd)
-    gevent.spawn(fqsocks.fqsocks.main)
+    try:
+        java_packet_engine_on = 'ON' == fdsock_query('ENGINE')
+    except:
+        LOGGER.exception('failed to query java packet engine')
+    if java_packet_engine_on:
+        LOGGER.info('tun traffic redirected by java packet engine')
+        greenlet = gevent.spawn(fqsocks.fqsocks.main)
+    else:
+        greenlet = gevent.spawn(redirect_tun_traffic, tun_fd)
+        gevent.spawn(fqsocks.fqsocks.main)
     greenlet.join()